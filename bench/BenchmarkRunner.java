@@ -0,0 +1,97 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/*
+ * Minimal warmup/measure harness for the benchmarks in this folder.
+ *
+ * Each iteration calls setup() outside the timed region and then run() inside it. The value 
+ * returned by run() is folded into a sink so the JIT cannot drop the work as dead code.
+ * Unless -Dbench.quiet=false is given, System.out is discarded while a task runs, so the 
+ * analysis' own diagnostics do not drown the results.
+ */
+public class BenchmarkRunner {
+
+	public static abstract class Task {
+		
+		public void setup() throws Exception {
+		}
+		
+		public abstract Object run() throws Exception;
+	}
+	
+	private int warmupIterations;
+	private int measureIterations;
+	private int sink = 0;
+	private boolean quiet = !"false".equals(System.getProperty("bench.quiet"));
+	
+	public BenchmarkRunner(int warmupIterations, int measureIterations) {
+		this.warmupIterations = warmupIterations;
+		this.measureIterations = measureIterations;
+	}
+	
+	/*
+	 * Pick the iteration counts up from -Dbench.warmup / -Dbench.iterations
+	 */
+	public static BenchmarkRunner fromSystemProperties() {
+		return new BenchmarkRunner(
+				Integer.getInteger("bench.warmup", 5).intValue(), 
+				Integer.getInteger("bench.iterations", 10).intValue());
+	}
+	
+	/*
+	 * Returns the median time per operation in milliseconds
+	 */
+	public double run(String name, Task task) throws Exception {
+		
+		PrintStream out = System.out;
+		double[] times = new double[measureIterations];
+		
+		if (quiet) {
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+		
+		try {
+			
+			for (int i=0; i<warmupIterations; i++) {
+				task.setup();
+				consume(task.run());
+			}
+			
+			for (int i=0; i<measureIterations; i++) {
+				task.setup();
+				long start = System.nanoTime();
+				consume(task.run());
+				times[i] = (System.nanoTime() - start) / 1e6;
+			}
+			
+		} finally {
+			// Diagnostics are printed by Log's writer thread; let it finish into the discarded stream
+			Log.flush();
+			System.setOut(out);
+		}
+		
+		Arrays.sort(times);
+		double median = times[times.length / 2];
+		
+		System.out.println(String.format("%-40s median %10.3f ms/op   min %10.3f   max %10.3f", 
+				name, median, times[0], times[times.length - 1]));
+		
+		return median;
+	}
+	
+	private void consume(Object result) {
+		if (result != null) {
+			sink ^= result.hashCode();
+		}
+	}
+	
+	public int getSink() {
+		return sink;
+	}
+}
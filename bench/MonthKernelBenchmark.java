@@ -0,0 +1,69 @@
+import java.util.Random;
+
+/*
+ * MonthKernel against the per-month getWarehouseDataByMonth() path it replaced.
+ *
+ *   java -cp lib/jxl.jar:bin MonthKernelBenchmark [accounts] [months]
+ */
+public class MonthKernelBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		
+		final int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int months = args.length > 1 ? Integer.parseInt(args[1]) : 24;
+		final int length = accounts * months;
+		
+		// Roughly one global month in ten is zero, like accounts with no activity that month
+		Random random = new Random(42);
+		final double[] history = new double[length];
+		final double[] global = new double[length];
+		for (int i=0; i<length; i++) {
+			history[i] = random.nextInt(10000);
+			global[i] = random.nextInt(10) == 0 ? 0 : random.nextInt(100000) + 1;
+		}
+		
+		final double[] local = new double[length];
+		final BudgetAnalysis analysis = new BudgetAnalysis();
+		BenchmarkRunner runner = BenchmarkRunner.fromSystemProperties();
+		
+		System.out.println("MonthKernel: " + accounts + " accounts x " + months + " months");
+		
+		for (final BudgetAnalysis.warehouse_type type : BudgetAnalysis.warehouse_type.values()) {
+			
+			runner.run("per-month " + type, new BenchmarkRunner.Task() {
+				public void setup() {
+					System.arraycopy(history, 0, local, 0, length);
+				}
+				public Object run() {
+					for (int account=0; account<accounts; account++) {
+						int offset = account * months;
+						for (int i=0; i<months; i++) {
+							if (global[offset+i] != 0) {
+								local[offset+i] = analysis.getWarehouseDataByMonth(type, local[offset+i], global[offset+i]);
+							} else {
+								local[offset+i] = 0f;
+							}
+						}
+					}
+					return Double.valueOf(local[length - 1]);
+				}
+			});
+			
+			runner.run("MonthKernel " + type, new BenchmarkRunner.Task() {
+				public void setup() {
+					System.arraycopy(history, 0, local, 0, length);
+				}
+				public Object run() {
+					for (int account=0; account<accounts; account++) {
+						int offset = account * months;
+						if (type == BudgetAnalysis.warehouse_type.TO_PERCENTAGE_WAREHOUSE) 
+							MonthKernel.divide(local, offset, global, offset, months);
+						else 
+							MonthKernel.multiply(local, offset, global, offset, months);
+					}
+					return Double.valueOf(local[length - 1]);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,213 @@
+import java.io.File;
+import java.util.ArrayList;
+
+import jxl.Sheet;
+import jxl.Workbook;
+
+/*
+ * One benchmark per pipeline stage, run against a SyntheticWorkbook:
+ *
+ *   java -cp lib/jxl.jar:bin PipelineBenchmark [warehouses] [accounts] [months] [dir]
+ *
+ * Each stage is timed on its own; setup() rebuilds whatever state the stage consumes, since 
+ * conversion works in place. Iteration counts come from -Dbench.warmup / -Dbench.iterations.
+ */
+public class PipelineBenchmark implements Constants {
+
+	public static void main(String[] args) throws Exception {
+		
+		int warehouses = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int months = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+		File dir = args.length > 3 ? new File(args[3]) : new File(System.getProperty("java.io.tmpdir"), "budget-bench");
+		
+		SyntheticWorkbook synthetic = new SyntheticWorkbook(dir, warehouses, accounts, months);
+		synthetic.generate();
+		
+		System.out.println("Pipeline: " + warehouses + " warehouses x " + accounts + " accounts x " + months + " months in " + dir);
+		
+		final BudgetAnalysis analysis = new BudgetAnalysis();
+		analysis.loadConfig(synthetic.getConfigFile().getPath());
+		analysis.setInputFiles(new File(dir, SyntheticWorkbook.HISTORY_FILE).getAbsolutePath(), 
+				new File(dir, SyntheticWorkbook.PROJECTION_FILE).getAbsolutePath());
+		
+		final Sheet histSheet = Workbook.getWorkbook(new File(dir, SyntheticWorkbook.HISTORY_FILE)).getSheet(0);
+		final Sheet projSheet = Workbook.getWorkbook(new File(dir, SyntheticWorkbook.PROJECTION_FILE)).getSheet(0);
+		
+		BenchmarkRunner runner = BenchmarkRunner.fromSystemProperties();
+		
+		//===============
+		// Ingestion
+		//===============
+		runner.run("read (jxl Workbook)", new BenchmarkRunner.Task() {
+			public void setup() {
+				analysis.clear();
+			}
+			public Object run() throws Exception {
+				analysis.read();
+				return analysis.getWarehouseMap();
+			}
+		});
+		
+		runner.run("readStreaming", new BenchmarkRunner.Task() {
+			public void setup() {
+				analysis.clear();
+			}
+			public Object run() throws Exception {
+				analysis.readStreaming();
+				return analysis.getWarehouseMap();
+			}
+		});
+		
+		runner.run("getAccounts (history)", new BenchmarkRunner.Task() {
+			public void setup() {
+				analysis.clear();
+			}
+			public Object run() {
+				analysis.getAccounts(histSheet, strACCOUNT_NAME_RANGE, strVOLUME_DATA_RANGE, strGROSS_MARGIN_RANGE, false);
+				return null;
+			}
+		});
+		
+		runner.run("getWarehouseAccounts", new BenchmarkRunner.Task() {
+			public void setup() {
+				analysis.clear();
+			}
+			public Object run() {
+				analysis.getWarehouseAccounts(histSheet);
+				return analysis.getWarehouseMap();
+			}
+		});
+		
+		//===============
+		// Conversion
+		//===============
+		runner.run("convertWarehouseAccounts (percentage)", new BenchmarkRunner.Task() {
+			public void setup() {
+				analysis.clear();
+				analysis.getAccounts(histSheet, strACCOUNT_NAME_RANGE, strVOLUME_DATA_RANGE, strGROSS_MARGIN_RANGE, false);
+				analysis.getWarehouseAccounts(histSheet);
+			}
+			public Object run() {
+				analysis.convertWarehouseAccounts(BudgetAnalysis.warehouse_type.TO_PERCENTAGE_WAREHOUSE);
+				return analysis.getWarehouseMap();
+			}
+		});
+		
+		runner.run("convertWarehouseAccounts (projection)", new BenchmarkRunner.Task() {
+			public void setup() {
+				analysis.clear();
+				analysis.getAccounts(histSheet, strACCOUNT_NAME_RANGE, strVOLUME_DATA_RANGE, strGROSS_MARGIN_RANGE, false);
+				analysis.getWarehouseAccounts(histSheet);
+				analysis.convertWarehouseAccounts(BudgetAnalysis.warehouse_type.TO_PERCENTAGE_WAREHOUSE);
+				analysis.getAccounts(projSheet, strPROJ_ACCOUNT_NAME_RANGE, strPROJ_VOLUME_DATA_RANGE, strPROJ_GROSS_MARGIN_RANGE, true);
+			}
+			public Object run() {
+				analysis.convertWarehouseAccounts(BudgetAnalysis.warehouse_type.TO_PROJECTION_WAREHOUSE);
+				return analysis.getWarehouseMap();
+			}
+		});
+		
+		//===============
+		// Cell parsing
+		//===============
+		final ArrayList<String> contents = new ArrayList<String>();
+		for (int y=0; y<histSheet.getRows(); y++) {
+			for (int x=2; x<2+2*months && x<histSheet.getColumns(); x++) {
+				contents.add(histSheet.getCell(x, y).getContents());
+			}
+		}
+		
+		runner.run("sanitizeString + parseDouble (" + contents.size() + " cells)", new BenchmarkRunner.Task() {
+			public Object run() {
+				double sum = 0;
+				for (int i=0; i<contents.size(); i++) {
+					String data = analysis.sanitizeString(contents.get(i));
+					if (data.isEmpty() == false) {
+						try {
+							sum += Double.parseDouble(data);
+						} catch (NumberFormatException e) {
+							// header labels
+						}
+					}
+				}
+				return Double.valueOf(sum);
+			}
+		});
+		
+		runner.run("AmountParser.parse (" + contents.size() + " cells)", new BenchmarkRunner.Task() {
+			public Object run() {
+				double sum = 0;
+				for (int i=0; i<contents.size(); i++) {
+					try {
+						sum += AmountParser.parse(contents.get(i));
+					} catch (NumberFormatException e) {
+						// header labels
+					}
+				}
+				return Double.valueOf(sum);
+			}
+		});
+		
+		//===============
+		// Excel export
+		//===============
+		final WriteExcel write = new WriteExcel(analysis);
+		write.setOutputFiles(new File(dir, "PROJECTED_ACCOUNTS.xls").getPath(), new File(dir, "MISSING_ACCOUNTS.xls").getPath());
+		
+		runner.run("WriteExcel.write", new BenchmarkRunner.Task() {
+			private boolean loaded = false;
+			public void setup() throws Exception {
+				// Writing does not touch the analysis, so one read serves every iteration
+				if (!loaded) {
+					analysis.clear();
+					analysis.read();
+					loaded = true;
+				}
+			}
+			public Object run() throws Exception {
+				write.write();
+				return null;
+			}
+		});
+		
+		runner.run("WriteExcel.writeMissingData", new BenchmarkRunner.Task() {
+			public Object run() throws Exception {
+				write.writeMissingData();
+				return null;
+			}
+		});
+		
+		runner.run("WriteExcel.writeStreaming", new BenchmarkRunner.Task() {
+			public Object run() throws Exception {
+				write.writeStreaming();
+				return null;
+			}
+		});
+		
+		runner.run("WriteExcel.writeMissingDataStreaming", new BenchmarkRunner.Task() {
+			public Object run() throws Exception {
+				write.writeMissingDataStreaming();
+				return null;
+			}
+		});
+		
+		//===============
+		// Other export formats
+		//===============
+		for (final String format : new String[] {"csv", "columnar"}) {
+			
+			final ProjectionExporter exporter = ProjectionExporter.forName(format);
+			final File file = new File(dir, "PROJECTED_ACCOUNTS." + exporter.getExtension());
+			final String[] volumeLabels = analysis.getLabels(analysis.getHistSheet(), strVOLUME_LABEL_RANGE);
+			final String[] marginLabels = analysis.getLabels(analysis.getHistSheet(), strGROSS_MARGIN_LABEL_RANGE);
+			
+			runner.run("ProjectionExporter " + format, new BenchmarkRunner.Task() {
+				public Object run() throws Exception {
+					exporter.export(analysis.getWarehouseMap(), volumeLabels, marginLabels, file);
+					return null;
+				}
+			});
+		}
+	}
+}
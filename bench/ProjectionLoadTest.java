@@ -0,0 +1,146 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Load test for ProjectionServer. Starts a server in-process on a SyntheticWorkbook (or
+ * targets a running one with -Dload.url) and has C clients each POST the projection
+ * workbook N times, then reports throughput and latency percentiles:
+ *
+ *   java -cp lib/jxl.jar:bin ProjectionLoadTest [clients] [requests] [warehouses] [accounts] [months] [dir]
+ *
+ * The first -Dload.warmup requests of every client are not counted.
+ */
+public class ProjectionLoadTest {
+
+	public static void main(String[] args) throws Exception {
+
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int warehouses = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int accounts = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		int months = args.length > 4 ? Integer.parseInt(args[4]) : 12;
+		File dir = args.length > 5 ? new File(args[5]) : new File(System.getProperty("java.io.tmpdir"), "budget-load");
+		final int warmup = Integer.getInteger("load.warmup", 5).intValue();
+
+		SyntheticWorkbook synthetic = new SyntheticWorkbook(dir, warehouses, accounts, months);
+		synthetic.generate();
+		final byte[] projection = readFile(new File(dir, SyntheticWorkbook.PROJECTION_FILE));
+
+		ProjectionServer server = null;
+		String url = System.getProperty("load.url");
+		if (url == null) {
+
+			BudgetAnalysis analysis = new BudgetAnalysis();
+			analysis.loadConfig(synthetic.getConfigFile().getPath());
+			analysis.setInputFiles(new File(dir, SyntheticWorkbook.HISTORY_FILE).getAbsolutePath(),
+					new File(dir, SyntheticWorkbook.PROJECTION_FILE).getAbsolutePath());
+
+			server = new ProjectionServer(analysis, 0, Integer.getInteger("load.threads", clients).intValue());
+			server.start();
+			url = "http://localhost:" + server.getPort() + "/projection";
+		}
+
+		System.out.println("Load: " + clients + " clients x " + requests + " requests, " + warehouses + " warehouses x "
+				+ accounts + " accounts x " + months + " months against " + url);
+
+		final URL target = new URL(url);
+		final long[][] latencies = new long[clients][requests];
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		long start = System.nanoTime();
+		for (int c=0; c<clients; c++) {
+
+			final int client = c;
+			new Thread("load-" + c) {
+				public void run() {
+					try {
+						for (int i=0; i<warmup + requests; i++) {
+
+							long t0 = System.nanoTime();
+							if (!post(target, projection))
+								errors.incrementAndGet();
+							if (i >= warmup)
+								latencies[client][i - warmup] = System.nanoTime() - t0;
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+						System.err.println("Client " + client + ": " + e.getMessage());
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		long[] all = new long[clients * requests];
+		for (int c=0; c<clients; c++) {
+			System.arraycopy(latencies[c], 0, all, c * requests, requests);
+		}
+		Arrays.sort(all);
+
+		int total = clients * (warmup + requests);
+		System.out.println(String.format("%d requests in %.2f s, %.1f req/s, %d errors",
+				Integer.valueOf(total), Double.valueOf(elapsed / 1e9), Double.valueOf(total / (elapsed / 1e9)), Integer.valueOf(errors.get())));
+		System.out.println(String.format("latency ms  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f",
+				Double.valueOf(percentile(all, 0.50)), Double.valueOf(percentile(all, 0.90)),
+				Double.valueOf(percentile(all, 0.99)), Double.valueOf(all[all.length-1] / 1e6)));
+
+		if (server != null)
+			server.stop();
+	}
+
+	private static boolean post(URL target, byte[] body) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/vnd.ms-excel");
+
+		OutputStream out = connection.getOutputStream();
+		out.write(body);
+		out.close();
+
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (in != null) {
+			byte[] buffer = new byte[64 * 1024];
+			while (in.read(buffer) > 0) {
+			}
+			in.close();
+		}
+		return status == 200;
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.File;
+
+/*
+ * Checks that a ProjectionView asked about one warehouse only allocates memo chunks for
+ * that warehouse's accounts, not for the whole history block, and that what it answers
+ * equals what the eager read() writes. Exits with 1 when either does not hold:
+ *
+ *   java -cp lib/jxl.jar:bin ProjectionViewTest [warehouses] [accounts] [months] [dir]
+ */
+public class ProjectionViewTest {
+
+	public static void main(String[] args) throws Exception {
+
+		int warehouses = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		int months = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+		File dir = args.length > 3 ? new File(args[3]) : new File(System.getProperty("java.io.tmpdir"), "budget-view");
+
+		SyntheticWorkbook synthetic = new SyntheticWorkbook(dir, warehouses, accounts, months);
+		synthetic.generate();
+
+		BudgetAnalysis lazy = open(synthetic, dir);
+		ProjectionView view = lazy.openProjectionView();
+		WarehouseStore history = view.getHistory();
+
+		BudgetAnalysis eager = open(synthetic, dir);
+		eager.read();
+		WarehouseStore projected = eager.getWarehouseMap();
+
+		// One warehouse from the middle of the block, every account of it
+		int warehouse = history.getWarehouseCount() / 2;
+		String warehouseName = history.getWarehouseName(warehouse);
+		int slots = history.getSlotCount(warehouse);
+		int stride = view.getVolumeMonths() + view.getMarginMonths();
+		int failures = 0;
+
+		for (int slot=0; slot<slots; slot++) {
+
+			int entity = history.getEntity(warehouse, slot);
+			String account = history.getAccountName(entity);
+			double[] actual = view.projection(warehouseName, account);
+
+			int expected = projected.indexOf(projected.warehouseIdOf(warehouseName), account);
+			if (expected < 0 || projected.isMissing(expected)) {
+				if (actual != null) {
+					System.out.println("FAIL " + warehouseName + " | " + account + " is missing in read() but projected by the view");
+					failures++;
+				}
+				continue;
+			}
+
+			double[] data = projected.getData();
+			int offset = projected.offset(expected, ColumnarStore.VOLUME);
+			for (int i=0; i<stride; i++) {
+				if (actual == null || Double.doubleToLongBits(actual[i]) != Double.doubleToLongBits(data[offset + i])) {
+					System.out.println("FAIL " + warehouseName + " | " + account + " month " + i + " differs from read()");
+					failures++;
+					break;
+				}
+			}
+		}
+
+		// A warehouse's accounts are consecutive entities, so they span at most this many chunks
+		int chunks = (slots + ProjectionView.CHUNK_SIZE - 1) / ProjectionView.CHUNK_SIZE + 1;
+		int held = view.getMemoizedMonths();
+		int block = history.size() * stride;
+
+		System.out.println("Queried " + warehouseName + ": " + slots + " accounts, view holds " + held
+				+ " months of a " + block + " month history block");
+
+		if (held > chunks * ProjectionView.CHUNK_SIZE * stride || held >= block) {
+			System.out.println("FAIL the view allocated more than the queried warehouse's chunks");
+			failures++;
+		}
+
+		System.out.println(failures == 0 ? "PASS" : failures + " failures");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static BudgetAnalysis open(SyntheticWorkbook synthetic, File dir) {
+
+		BudgetAnalysis analysis = new BudgetAnalysis();
+		analysis.loadConfig(synthetic.getConfigFile().getPath());
+		analysis.setInputFiles(new File(dir, SyntheticWorkbook.HISTORY_FILE).getAbsolutePath(),
+				new File(dir, SyntheticWorkbook.PROJECTION_FILE).getAbsolutePath());
+		return analysis;
+	}
+}
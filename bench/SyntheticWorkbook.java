@@ -0,0 +1,192 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+import jxl.Workbook;
+import jxl.biff.CellReferenceHelper;
+import jxl.write.Label;
+import jxl.write.Number;
+import jxl.write.WritableSheet;
+import jxl.write.WritableWorkbook;
+import jxl.write.WriteException;
+
+/*
+ * Writes a history workbook, a projection workbook and a matching config.txt laid out the 
+ * way BudgetAnalysis expects them: N warehouses x M accounts x K months.
+ *
+ * Accounts are drawn from a pool twice the size of M, so the same account shows up under 
+ * several warehouses and the global totals really aggregate. Every ninth account of the 
+ * pool is left out of the projection to exercise the missing-account path. A few cells are 
+ * text such as "1,234" or blank, like the hand-edited sheets finance sends.
+ *
+ *   java -cp lib/jxl.jar:bin SyntheticWorkbook <dir> <warehouses> <accounts> <months>
+ */
+public class SyntheticWorkbook {
+
+	public static final String HISTORY_FILE = "history.xls";
+	public static final String PROJECTION_FILE = "projection.xls";
+	public static final String CONFIG_FILE = "config.txt";
+	
+	// BIFF8 sheets stop at 65,536 rows and 256 columns
+	private static final int MAX_ROWS = 65536;
+	private static final int MAX_COLUMNS = 256;
+	
+	private File dir;
+	private int warehouses;
+	private int accounts;
+	private int months;
+	private Random random = new Random(42);
+	
+	public SyntheticWorkbook(File dir, int warehouses, int accounts, int months) {
+		
+		if (warehouses * (accounts + 1) + 2 > MAX_ROWS) 
+			throw new IllegalArgumentException(warehouses + " x " + accounts + " does not fit in one BIFF8 sheet");
+		if (2 + 2 * months > MAX_COLUMNS) 
+			throw new IllegalArgumentException(months + " months does not fit in one BIFF8 sheet");
+		
+		this.dir = dir;
+		this.warehouses = warehouses;
+		this.accounts = accounts;
+		this.months = months;
+	}
+	
+	public File getConfigFile() {
+		return new File(dir, CONFIG_FILE);
+	}
+	
+	public void generate() throws IOException, WriteException {
+		
+		dir.mkdirs();
+		int historyRows = writeHistory(new File(dir, HISTORY_FILE));
+		int projectionRows = writeProjection(new File(dir, PROJECTION_FILE));
+		writeConfig(historyRows, projectionRows);
+	}
+	
+	private int writeHistory(File file) throws IOException, WriteException {
+		
+		WritableWorkbook workbook = Workbook.createWorkbook(file);
+		WritableSheet sheet = workbook.createSheet("History", 0);
+		
+		sheet.addCell(new Label(0, 1, "Warehouse"));
+		sheet.addCell(new Label(1, 1, "Acct#Name"));
+		for (int m=0; m<months; m++) {
+			sheet.addCell(new Label(2+m, 1, "Volume " + (m+1)));
+			sheet.addCell(new Label(2+months+m, 1, "Margin " + (m+1)));
+		}
+		
+		int pool = accounts * 2;
+		int y = 2;
+		for (int w=0; w<warehouses; w++) {
+			
+			for (int a=0; a<accounts; a++) {
+				
+				int account = (w * 7 + a) % pool;
+				if (a == 0) 
+					sheet.addCell(new Label(0, y, "Warehouse " + w));
+				sheet.addCell(new Label(1, y, getAccountName(account)));
+				
+				for (int m=0; m<months; m++) {
+					addValue(sheet, 2+m, y, random.nextInt(5000));
+					addValue(sheet, 2+months+m, y, Math.round(random.nextDouble() * 100000) / 100.0);
+				}
+				y++;
+			}
+			
+			sheet.addCell(new Label(0, y, "Warehouse " + w + " Total"));
+			y++;
+		}
+		
+		workbook.write();
+		workbook.close();
+		
+		return y;
+	}
+	
+	private int writeProjection(File file) throws IOException, WriteException {
+		
+		WritableWorkbook workbook = Workbook.createWorkbook(file);
+		WritableSheet sheet = workbook.createSheet("Projection", 0);
+		
+		sheet.addCell(new Label(0, 1, "Acct#Name"));
+		for (int m=0; m<months; m++) {
+			sheet.addCell(new Label(1+m, 1, "Volume " + (m+1)));
+			sheet.addCell(new Label(1+months+m, 1, "Margin " + (m+1)));
+		}
+		
+		int y = 2;
+		for (int account=0; account<accounts * 2; account++) {
+			
+			if (account % 9 == 4) 
+				continue;
+			
+			sheet.addCell(new Label(0, y, getAccountName(account)));
+			for (int m=0; m<months; m++) {
+				addValue(sheet, 1+m, y, random.nextInt(9000));
+				addValue(sheet, 1+months+m, y, random.nextInt(90000) / 10.0);
+			}
+			y++;
+		}
+		
+		workbook.write();
+		workbook.close();
+		
+		return y;
+	}
+	
+	private void addValue(WritableSheet sheet, int x, int y, double value) throws WriteException {
+		
+		int pick = random.nextInt(20);
+		if (pick == 0) {
+			// leave blank
+		} else if (pick == 1) {
+			sheet.addCell(new Label(x, y, String.format(Locale.US, "%,d", Long.valueOf((long) value))));
+		} else {
+			sheet.addCell(new Number(x, y, value));
+		}
+	}
+	
+	private void writeConfig(int historyRows, int projectionRows) throws IOException {
+		
+		String lastVolume = CellReferenceHelper.getColumnReference(1 + months);
+		String firstMargin = CellReferenceHelper.getColumnReference(2 + months);
+		String lastMargin = CellReferenceHelper.getColumnReference(1 + 2 * months);
+		String lastProjVolume = CellReferenceHelper.getColumnReference(months);
+		String firstProjMargin = CellReferenceHelper.getColumnReference(1 + months);
+		String lastProjMargin = CellReferenceHelper.getColumnReference(2 * months);
+		
+		PrintWriter out = new PrintWriter(getConfigFile());
+		out.println("HIST_DATA_FILE_NAME=" + new File(dir, HISTORY_FILE).getAbsolutePath());
+		out.println("PROJ_DATA_FILE_NAME=" + new File(dir, PROJECTION_FILE).getAbsolutePath());
+		out.println("HIST_WAREHOUSE_DATA_STARTING_COORDINATE=A3");
+		out.println("HIST_ACCOUNT_NAME_LABEL=B2");
+		out.println("HIST_ACCOUNT_NAME_RANGE=B3:B" + historyRows);
+		out.println("HIST_VOLUME_LABEL_RANGE=C2:" + lastVolume + "2");
+		out.println("HIST_VOLUME_DATA_RANGE=C3:" + lastVolume + historyRows);
+		out.println("HIST_GROSS_MARGIN_LABEL_RANGE=" + firstMargin + "2:" + lastMargin + "2");
+		out.println("HIST_GROSS_MARGIN_RANGE=" + firstMargin + "3:" + lastMargin + historyRows);
+		out.println("PROJ_ACCOUNT_NAME_LABEL=A2");
+		out.println("PROJ_ACCOUNT_NAME_RANGE=A3:A" + projectionRows);
+		out.println("PROJ_VOLUME_LABEL_RANGE=B2:" + lastProjVolume + "2");
+		out.println("PROJ_VOLUME_DATA_RANGE=B3:" + lastProjVolume + projectionRows);
+		out.println("PROJ_GROSS_MARGIN_LABEL_RANGE=" + firstProjMargin + "2:" + lastProjMargin + "2");
+		out.println("PROJ_GROSS_MARGIN_RANGE=" + firstProjMargin + "3:" + lastProjMargin + projectionRows);
+		out.close();
+	}
+	
+	private static String getAccountName(int account) {
+		return (1000 + account) + "#Account " + account;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		if (args.length < 4) {
+			System.err.println("Usage: SyntheticWorkbook <dir> <warehouses> <accounts> <months>");
+			return;
+		}
+		
+		new SyntheticWorkbook(new File(args[0]), Integer.parseInt(args[1]), 
+				Integer.parseInt(args[2]), Integer.parseInt(args[3])).generate();
+	}
+}
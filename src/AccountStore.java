@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/*
+ * Global (history or projected) accounts: one entity per distinct account name. Names are
+ * symbols of a SymbolTable, which the analysis shares with its other stores, and the
+ * entity of a symbol is found by array index.
+ */
+public class AccountStore extends ColumnarStore {
+
+	private SymbolTable symbols;
+
+	// symbol -> entity, -1 where the symbol is not an account of this store
+	private int[] entityBySymbol = new int[0];
+
+	// entity -> symbol
+	private int[] entitySymbol = new int[0];
+
+	public AccountStore() {
+		this(new SymbolTable());
+	}
+
+	public AccountStore(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	public int indexOf(String name) {
+		return indexOfSymbol(symbols.idOf(name));
+	}
+
+	/*
+	 * Entity of the symbol, or -1
+	 */
+	public int indexOfSymbol(int symbol) {
+		return (symbol < 0 || symbol >= entityBySymbol.length) ? -1 : entityBySymbol[symbol];
+	}
+
+	public boolean contains(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	public String getName(int entity) {
+		return symbols.getName(entitySymbol[entity]);
+	}
+
+	public int getSymbol(int entity) {
+		return entitySymbol[entity];
+	}
+
+	/*
+	 * Set the account's months, creating the account if needed. Returns its entity index.
+	 */
+	public int put(String name, double[] volumes, double[] margins) {
+		return put(symbols.intern(name), volumes, margins);
+	}
+
+	public int put(int symbol, double[] volumes, double[] margins) {
+
+		int entity = indexOfSymbol(symbol);
+		if (entity < 0) {
+			entity = newEntity(volumes, margins);
+			bind(symbol, entity);
+		}
+
+		set(entity, volumes, margins);
+		return entity;
+	}
+
+	/*
+	 * Rebuild a store from a snapshot: names[i] owns entity i of the block
+	 */
+	public static AccountStore restore(int volumeMonths, int marginMonths, String[] names, double[] data) {
+		return restore(volumeMonths, marginMonths, names, data, new SymbolTable());
+	}
+
+	public static AccountStore restore(int volumeMonths, int marginMonths, String[] names, double[] data, SymbolTable symbols) {
+
+		AccountStore store = new AccountStore(symbols);
+		store.restore(volumeMonths, marginMonths, names.length, data);
+
+		for (int i=0; i<names.length; i++) {
+			store.bind(symbols.intern(names[i]), i);
+		}
+		return store;
+	}
+
+	private void bind(int symbol, int entity) {
+
+		if (symbol >= entityBySymbol.length) {
+			int length = entityBySymbol.length;
+			entityBySymbol = Arrays.copyOf(entityBySymbol, Math.max(symbol + 1, Math.max(64, length * 2)));
+			Arrays.fill(entityBySymbol, length, entityBySymbol.length, -1);
+		}
+
+		entityBySymbol[symbol] = entity;
+		entitySymbol[entity] = symbol;
+	}
+
+	@Override
+	protected void grow(int capacity) {
+		entitySymbol = Arrays.copyOf(entitySymbol, capacity);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Parses amounts such as "1,234.50" or "$12" straight from the cell text, without the 
+ * intermediate Strings of sanitizeString() + Double.parseDouble().
+ *
+ * '$', ',' and '"' are skipped wherever they appear, and an empty amount is 0, matching the 
+ * legacy path. Values with at most 15 significant digits and a decimal exponent within 
+ * +/-22 are computed as one exact multiply or divide, which gives the same correctly rounded 
+ * double that Double.parseDouble() returns. Anything else (long mantissas, NaN, malformed 
+ * text) is handed to Double.parseDouble(), so errors surface exactly as before.
+ */
+public final class AmountParser {
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	private static final int MAX_FAST_DIGITS = 15;
+	
+	private AmountParser() {
+	}
+	
+	public static double parse(String text) {
+		
+		int start = 0;
+		int end = text.length();
+		
+		while (start < end && text.charAt(start) <= ' ') 
+			start++;
+		while (end > start && text.charAt(end-1) <= ' ') 
+			end--;
+		
+		boolean negative = false;
+		boolean seenSign = false;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		int exponent = 0;
+		
+		int i = start;
+		for (; i<end; i++) {
+			
+			char c = text.charAt(i);
+			
+			if (c == '$' || c == ',' || c == '"') {
+				continue;
+			} else if (c >= '0' && c <= '9') {
+				
+				seenDigit = true;
+				if (mantissa != 0 || c != '0') {
+					if (++digits > MAX_FAST_DIGITS) 
+						return fallback(text);
+					mantissa = mantissa * 10 + (c - '0');
+				}
+				if (seenPoint) 
+					scale++;
+				
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else if ((c == '-' || c == '+') && !seenSign && !seenDigit && !seenPoint) {
+				seenSign = true;
+				negative = (c == '-');
+			} else if ((c == 'e' || c == 'E') && seenDigit) {
+				break;
+			} else {
+				return fallback(text);
+			}
+		}
+		
+		// Exponent, if any
+		if (i < end) {
+			
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+				negativeExponent = (text.charAt(i) == '-');
+				i++;
+			}
+			
+			if (i == end) 
+				return fallback(text);
+			
+			for (; i<end; i++) {
+				char c = text.charAt(i);
+				if (c < '0' || c > '9' || exponent > 1000) 
+					return fallback(text);
+				exponent = exponent * 10 + (c - '0');
+			}
+			
+			if (negativeExponent) 
+				exponent = -exponent;
+		}
+		
+		if (!seenDigit) {
+			// Nothing but separators reads as an empty cell; a lone sign or point is malformed
+			if (seenSign || seenPoint) 
+				return fallback(text);
+			return 0;
+		}
+		
+		double value = mantissa;
+		int power = exponent - scale;
+		
+		if (mantissa != 0) {
+			if (power < -22 || power > 22) 
+				return fallback(text);
+			value = (power < 0) ? value / POWERS_OF_TEN[-power] : value * POWERS_OF_TEN[power];
+		}
+		
+		return negative ? -value : value;
+	}
+	
+	private static double fallback(String text) {
+		
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i=0; i<text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != '$' && c != ',' && c != '"') 
+				sb.append(c);
+		}
+		
+		String stripped = sb.toString().trim();
+		if (stripped.isEmpty()) 
+			return 0;
+		
+		return Double.parseDouble(stripped);
+	}
+}
@@ -0,0 +1,162 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import jxl.Sheet;
+
+/*
+ * Everything one analysis reads and builds: its config, the global and projected
+ * accountMaps, the warehouseMap, the missing accounts and the history's label rows.
+ *
+ * Each BudgetAnalysis owns one, so analyses running side by side in the same JVM never
+ * see each other's data. A context may start from another one's config, which is only
+ * read once it is loaded, but never shares its stores. LOG_LEVEL is the exception: the
+ * log is the process', so the level is set by main() and not by a context's config.
+ */
+public class AnalysisContext {
+
+	Map<String, String> config;
+
+	// Account names of every store below, so they match each other by symbol id
+	SymbolTable symbols = new SymbolTable();
+
+	// Store: <warehouseName, accountName> -> volumes/margins
+	WarehouseStore warehouseMap = new WarehouseStore(symbols);
+
+	AccountStore accountMap = new AccountStore(symbols);
+	AccountStore projectedAccountMap = new AccountStore(symbols);
+
+	ArrayList<String[]> missingAccountList = new ArrayList<String[]>();
+
+	// Label rows captured while streaming, since there is no Sheet to go back to
+	Map<String, String[]> labelCache = new HashMap<String, String[]>();
+
+	Sheet histSheet = null;
+	Sheet projSheet = null;
+
+	// Stage timings and counts of this run
+	Metrics metrics = new Metrics();
+
+	// Config ranges resolved once; see compileLayouts()
+	private SheetLayout historyLayout;
+	private SheetLayout projectionLayout;
+
+	// Warehouses to read, or null for all; see BudgetAnalysis.setQuery()
+	ProjectionQuery query;
+
+	// Where INCREMENTAL keeps the history result, or null for the config's choice; see
+	// BudgetAnalysis.getHistoryCacheFile()
+	File historyCacheFile;
+
+	public AnalysisContext() {
+		this(new HashMap<String, String>());
+	}
+
+	public AnalysisContext(Map<String, String> config) {
+		this.config = config;
+	}
+
+	/*
+	 * A fresh context with the same config and nothing read yet
+	 */
+	public AnalysisContext newRun() {
+
+		AnalysisContext run = new AnalysisContext(config);
+		run.historyLayout = historyLayout;
+		run.projectionLayout = projectionLayout;
+		run.query = query;
+		run.historyCacheFile = historyCacheFile;
+		run.metrics.setRowTiming(metrics.isRowTiming());
+		return run;
+	}
+
+	/*
+	 * Give this analysis a history cache of its own, for analyses that run side by side
+	 */
+	public void setHistoryCacheFile(File historyCacheFile) {
+		this.historyCacheFile = historyCacheFile;
+	}
+
+	public String getConfig(String key) {
+		return config.get(key);
+	}
+
+	public Map<String, String> getConfig() {
+		return config;
+	}
+
+	public boolean isEnabled(String key) {
+		return "true".equalsIgnoreCase(config.get(key));
+	}
+
+	/*
+	 * Resolve the history and projection ranges of the config, failing on the first one
+	 * that is missing or malformed. Called whenever the config is (re)loaded.
+	 */
+	public void compileLayouts() {
+
+		historyLayout = SheetLayout.forHistory(config);
+		projectionLayout = SheetLayout.forProjection(config);
+	}
+
+	/*
+	 * Narrow both layouts to months [from, to] of their volumes and margins
+	 */
+	public void sliceLayouts(int from, int to) {
+
+		historyLayout = getHistoryLayout().sliceMonths(from, to);
+		projectionLayout = getProjectionLayout().sliceMonths(from, to);
+	}
+
+	public SheetLayout getHistoryLayout() {
+		if (historyLayout == null)
+			historyLayout = SheetLayout.forHistory(config);
+		return historyLayout;
+	}
+
+	public SheetLayout getProjectionLayout() {
+		if (projectionLayout == null)
+			projectionLayout = SheetLayout.forProjection(config);
+		return projectionLayout;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public WarehouseStore getWarehouseMap() {
+		return warehouseMap;
+	}
+
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	public AccountStore getAccountMap() {
+		return accountMap;
+	}
+
+	public AccountStore getProjectedAccountMap() {
+		return projectedAccountMap;
+	}
+
+	public ArrayList<String[]> getMissingAccountList() {
+		return missingAccountList;
+	}
+
+	/*
+	 * Drop everything read so far, keeping the config
+	 */
+	public void clear() {
+
+		symbols = new SymbolTable();
+		warehouseMap = new WarehouseStore(symbols);
+		accountMap = new AccountStore(symbols);
+		projectedAccountMap = new AccountStore(symbols);
+		missingAccountList = new ArrayList<String[]>();
+		labelCache.clear();
+		histSheet = null;
+		projSheet = null;
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jxl.read.biff.BiffException;
+import jxl.write.WriteException;
+
+/*
+ * read(), write() and writeMissingData() for histories too large to hold in the heap:
+ *
+ *   AGGREGATION_MEMORY_MB=256     the heap the account totals may take, in megabytes
+ *   SPILL_DIRECTORY=/scratch      where the temp files go (default: the system's)
+ *
+ * Both workbooks are read a row at a time. History and projection totals are summed in
+ * SpilledAccounts, which sorts and spills them to memory-mapped run files whenever the
+ * budget is used up and merges the runs once the sheet is done. Warehouses go to
+ * SpilledWarehouses one block at a time. The output is then written in a single pass:
+ * each warehouse is read back, converted to percentages and projected against the merged
+ * totals, and its rows go straight to the projected accounts workbook.
+ *
+ * The heap holds one budget's worth of totals, one warehouse and the warehouse names, not
+ * the sheets. The history is spilled at the end of every HIST_DATA_FILES sheet too, so
+ * its totals are summed sheet by sheet as readHistories() does; an account whose rows
+ * within one sheet straddle a spill can then differ in the last bits from the in-heap
+ * sum. Otherwise the workbooks are the ones read() with STREAMING_WRITE=true writes.
+ * EXPORT_FORMATS, INCREMENTAL and the cell-by-cell jxl paths need the whole warehouseMap
+ * and are not available here.
+ */
+public class BoundedRun implements Constants {
+
+	private BudgetAnalysis analysis;
+	private long budget;
+
+	public BoundedRun(BudgetAnalysis analysis, long budget) {
+		this.analysis = analysis;
+		this.budget = budget;
+	}
+
+	/*
+	 * Read the analysis' input files and write the projected and missing accounts workbooks
+	 * to the given paths
+	 */
+	public void run(String outputPath, String missingPath) throws IOException, BiffException, WriteException {
+
+		AnalysisContext context = analysis.getContext();
+		File directory = analysis.getSpillDirectory();
+
+		analysis.clear();
+		long start = context.getMetrics().start();
+
+		SpilledAccounts history = new SpilledAccounts("history", budget, directory);
+		SpilledAccounts projection = new SpilledAccounts("projection", budget, directory);
+		SpilledWarehouses warehouses = new SpilledWarehouses(directory);
+
+		try {
+
+			long read = context.getMetrics().start();
+			readHistory(history, warehouses);
+			readProjection(projection);
+			context.getMetrics().stop("readBounded", read);
+
+			long written = context.getMetrics().start();
+			int missing = write(history, projection, warehouses, new File(outputPath), new File(missingPath), directory);
+			context.getMetrics().stop("writeBounded", written);
+
+			context.getMetrics().set(Metrics.ACCOUNTS, history.size());
+			context.getMetrics().set(Metrics.PROJECTED_ACCOUNTS, projection.size());
+			context.getMetrics().set(Metrics.WAREHOUSES, warehouses.getWarehouseCount());
+			context.getMetrics().set(Metrics.MISSING_ACCOUNTS, missing);
+
+			context.getMetrics().set("spill.runs", history.getRunCount() + projection.getRunCount());
+			context.getMetrics().set("spill.bytes", history.getSpilledBytes() + projection.getSpilledBytes() + warehouses.getSpilledBytes());
+
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		} finally {
+			history.close();
+			projection.close();
+			warehouses.close();
+		}
+
+		context.getMetrics().stop("bounded", start);
+	}
+
+	/*
+	 * Every history sheet in turn. Labels come from the first one that has them.
+	 */
+	private void readHistory(SpilledAccounts history, SpilledWarehouses warehouses) throws IOException, BiffException {
+
+		AnalysisContext context = analysis.getContext();
+
+		if (analysis.hasHistorySources()) {
+
+			List<HistorySource> sources = analysis.getHistorySources();
+			for (HistorySource source : sources) {
+
+				Map<String, String[]> labels = new HashMap<String, String[]>();
+				warehouses.startSource();
+				new StreamingWorkbookReader(source.getFile()).read(source.getSheet(),
+						analysis.new HistoryRowHandler(history, warehouses, labels));
+				history.spill();
+
+				for (Map.Entry<String, String[]> label : labels.entrySet()) {
+					if (!context.labelCache.containsKey(label.getKey()))
+						context.labelCache.put(label.getKey(), label.getValue());
+				}
+			}
+
+		} else {
+
+			new StreamingWorkbookReader(analysis.getInputFile(analysis.getHistoryInputFile())).read(0,
+					analysis.new HistoryRowHandler(history, warehouses, context.labelCache));
+		}
+
+		history.finish();
+		warehouses.finish();
+
+		Log.info("History totals spilled to " + history.getRunCount() + " runs, "
+				+ warehouses.getWarehouseCount() + " warehouses to " + warehouses.getSpilledBytes() + " bytes");
+	}
+
+	private void readProjection(SpilledAccounts projection) throws IOException, BiffException {
+
+		new StreamingWorkbookReader(analysis.getInputFile(analysis.getProjectionInputFile())).read(0,
+				analysis.new AccountRowHandler(analysis.getContext().getProjectionLayout(), projection));
+
+		projection.finish();
+	}
+
+	/*
+	 * Convert and write one warehouse at a time. Accounts missing from the history totals
+	 * are written to the missing workbook as they are found; those missing from the
+	 * projection wait in a temp file, as the eager path lists them after all of the others.
+	 * Returns how many were missing.
+	 */
+	private int write(SpilledAccounts history, SpilledAccounts projection, SpilledWarehouses warehouses,
+			File outputFile, File missingFile, File directory) throws IOException, WriteException {
+
+		StreamingWorkbookWriter output = new StreamingWorkbookWriter(outputFile, "Projections");
+		StreamingWorkbookWriter missingOutput = null;
+		File projectionMissing = File.createTempFile("missing", ".tmp", directory);
+		int missing = 0;
+
+		try {
+
+			missingOutput = new StreamingWorkbookWriter(missingFile, "Missing Accounts in Projection");
+
+			WriteExcel.StreamingCells cells = new WriteExcel.StreamingCells(output);
+			new WriteExcel(analysis).createLabels(cells);
+			WriteExcel.ContentWriter content = new WriteExcel.ContentWriter(cells);
+			WriteExcel.MissingWriter missingRows = new WriteExcel.MissingWriter(new WriteExcel.StreamingCells(missingOutput));
+
+			DataOutputStream pending = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(projectionMissing)));
+			try {
+
+				for (int w=0; w<warehouses.getWarehouseCount(); w++) {
+
+					WarehouseStore warehouse = warehouses.load(w);
+
+					for (String[] account : convert(warehouse, history, BudgetAnalysis.warehouse_type.TO_PERCENTAGE_WAREHOUSE)) {
+						missingRows.add(account[0], account[1]);
+						missing++;
+					}
+
+					for (String[] account : convert(warehouse, projection, BudgetAnalysis.warehouse_type.TO_PROJECTION_WAREHOUSE)) {
+						pending.writeUTF(account[0]);
+						pending.writeUTF(account[1]);
+						missing++;
+					}
+
+					content.add(warehouse, 0);
+				}
+
+				content.finish();
+
+			} finally {
+				pending.close();
+			}
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(projectionMissing)));
+			try {
+				while (true) {
+					missingRows.add(in.readUTF(), in.readUTF());
+				}
+			} catch (EOFException e) {
+				// every pending account is written
+			} finally {
+				in.close();
+			}
+
+		} finally {
+			output.close();
+			if (missingOutput != null)
+				missingOutput.close();
+			projectionMissing.delete();
+		}
+
+		return missing;
+	}
+
+	/*
+	 * convertWarehouse() for a warehouse read back on its own, against merged totals: the
+	 * same skips, log lines and kernels, returning the accounts it masks as missing
+	 */
+	private ArrayList<String[]> convert(WarehouseStore warehouseMap, SpilledAccounts totals, BudgetAnalysis.warehouse_type type) {
+
+		ArrayList<String[]> missing = new ArrayList<String[]>();
+
+		double[] local = warehouseMap.getData();
+		int volumeMonths = warehouseMap.getVolumeMonths();
+		int marginMonths = warehouseMap.getMarginMonths();
+		boolean sameSize = totals.getVolumeMonths() == volumeMonths
+				&& totals.getMarginMonths() == marginMonths;
+
+		String warehouseName = warehouseMap.getWarehouseName(0);
+		double[] global = new double[Math.max(volumeMonths + marginMonths, 0)];
+
+		for (int slot=0; slot<warehouseMap.getSlotCount(0); slot++) {
+
+			int entity = warehouseMap.getEntity(0, slot);
+			if (warehouseMap.isRemoved(entity))
+				continue;
+
+			String accountName = warehouseMap.getAccountName(entity);
+			int record = totals.find(accountName);
+
+			if (record < 0) {
+
+				if (Log.isEnabled(Log.Level.INFO))
+					Log.info("Global list is NULL for " + warehouseName + " | " + accountName);
+
+				missing.add(new String[] {warehouseName, accountName});
+				warehouseMap.markMissing(entity);
+
+			} else if (sameSize == false) {
+				Log.warnLimited("Global Size != Local Size", "Global Size != Local Size");
+			} else {
+
+				totals.get(record, global, 0);
+				int localOffset = warehouseMap.offset(entity, ColumnarStore.VOLUME);
+
+				if (type == BudgetAnalysis.warehouse_type.TO_PERCENTAGE_WAREHOUSE)
+					MonthKernel.divide(local, localOffset, global, 0, volumeMonths + marginMonths);
+				else
+					MonthKernel.multiply(local, localOffset, global, 0, volumeMonths + marginMonths);
+			}
+		}
+
+		return missing;
+	}
+}
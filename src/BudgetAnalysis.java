@@ -9,12 +9,22 @@ import java.io.InputStreamReader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jxl.Cell;
+import jxl.CellType;
+import jxl.NumberCell;
 import jxl.Sheet;
 import jxl.Workbook;
+import jxl.biff.CellReferenceHelper;
 import jxl.read.biff.BiffException;
 import jxl.write.WriteException;
 
@@ -34,24 +44,28 @@ public class BudgetAnalysis implements Constants {
 	private String historyInputFile;
 	private String projectionInputFile;
 	
-	private Sheet histSheet = null;
-	private Sheet projSheet = null;
+	// Config, stores, missing accounts and labels of this analysis only
+	private final AnalysisContext context;
 	
-	// Map: <warehouseName, Map<accountName, volumes/margins>> 
-	private static Map<String, Map<String, ArrayList<double[]>>> gWarehouseMap = new HashMap<String, Map<String, ArrayList<double[]>>>();
+	public BudgetAnalysis() {
+		this(new AnalysisContext());
+	}
 	
-	public Map<String, Map<String, ArrayList<double[]>>> getWarehouseMap() {
-		return gWarehouseMap;
+	public BudgetAnalysis(AnalysisContext context) {
+		this.context = context;
+		this.verifyCellParsing = context.isEnabled(strVERIFY_CELL_PARSING);
 	}
-
-
-	private static Map<String, ArrayList<double[]>> gAccountMap = new HashMap<String, ArrayList<double[]>>();
-	private static Map<String, ArrayList<double[]>> gProjectedAccountMap = new HashMap<String, ArrayList<double[]>>();
 	
-	private static ArrayList<String[]> missingAccountList = new ArrayList<String[]>();
+	public AnalysisContext getContext() {
+		return context;
+	}
 	
+	public WarehouseStore getWarehouseMap() {
+		return context.warehouseMap;
+	}
+
 	public ArrayList<String[]> getMissingAccountList() {
-		return missingAccountList;
+		return context.missingAccountList;
 	}
 
 
@@ -63,51 +77,81 @@ public class BudgetAnalysis implements Constants {
 	private static final String histAccountPath = "/Users/joe/Documents/workspace/BudgetAnalysis/bin/histAccounts.txt";
 	private static final String projAccountPath = "/Users/joe/Documents/workspace/BudgetAnalysis/bin/projAccounts.txt";
 	
-	private static Map<String, String> configHash = new HashMap<String, String>();
+	private static final String historyCachePath = "/Users/joe/Documents/workspace/BudgetAnalysis/bin/history.cache";
+	
+	private boolean verifyCellParsing = false;
+	private AtomicInteger cellParseMismatches = new AtomicInteger();
 		
 	public void setInputFiles(String histInputFile, String projInputFile) {
 		
-		System.out.println();
+		Log.info("");
 		
 		this.historyInputFile = histInputFile;
 		this.projectionInputFile = projInputFile;
 	}
+	
+	public String getHistoryInputFile() {
+		return historyInputFile;
+	}
+	
+	public String getProjectionInputFile() {
+		return projectionInputFile;
+	}
+
+	/*
+	 * Input names from config.txt are relative to ./bin, unless given as absolute paths
+	 */
+	public File getInputFile(String name) {
+		
+		File file = new File(name);
+		if (file.isAbsolute()) 
+			return file;
+		
+		return new File("./bin/" + name);
+	}
+	
+	/*
+	 * Drop everything read so far, keeping the config
+	 */
+	public void clear() {
+		context.clear();
+	}
 
 	public void read() throws IOException  {
+		read(context.isEnabled(strSTREAMING_READ));
+	}
+
+	/*
+	 * Same steps as read(), but both workbooks are visited one row at a time through 
+	 * StreamingWorkbookReader instead of being loaded as jxl Workbooks. The history 
+	 * accountMap, warehouseMap and label rows are all filled in a single pass.
+	 */
+	public void readStreaming() throws IOException {
+		read(true);
+	}
+	
+	public void read(boolean streaming) throws IOException  {
 		
-		File historyInputWorkbook = new File("./bin/" + historyInputFile);
-		File projectionInputWorkbook = new File("./bin/" + projectionInputFile);
+		File historyInputWorkbook = getInputFile(historyInputFile);
+		File projectionInputWorkbook = getInputFile(projectionInputFile);
+		
+		// Every read starts over, so the same analysis can be run again
+		clear();
+		
+		long start = context.metrics.start();
 		
-		Workbook histW, projW;
-				
 		try {
-						
-			histW = Workbook.getWorkbook(historyInputWorkbook);
-			projW = Workbook.getWorkbook(projectionInputWorkbook);
 			
-			// Get the sheets
-			histSheet = histW.getSheet(0);
-			projSheet = projW.getSheet(0);
-						
-			// Get global accountMap first
-			getAccounts(histSheet, strACCOUNT_NAME_RANGE, strVOLUME_DATA_RANGE, strGROSS_MARGIN_RANGE, false);
-
-			// Get warehouseMap, which is hashed by warehouses
-			getWarehouseAccounts(histSheet);
-
-			// Convert global warehouseMap into values represented by %
-			// i.e., calculated via warehouseMap / accountMap
-			convertWarehouseAccounts(warehouse_type.TO_PERCENTAGE_WAREHOUSE);
+			// Get the global accountMap and the warehouseMap in %
+			loadHistory(historyInputWorkbook, streaming);
 
 			// Get projected accounts
-			getAccounts(projSheet, strPROJ_ACCOUNT_NAME_RANGE, strPROJ_VOLUME_DATA_RANGE, strPROJ_GROSS_MARGIN_RANGE, true);
+			readProjection(projectionInputWorkbook, streaming);
 
-			// Lastly get projected warehouseMap
+			// Lastly get projected warehouseMap; missing accounts are masked out of it as 
+			// they are found
 			convertWarehouseAccounts(warehouse_type.TO_PROJECTION_WAREHOUSE);
 			
-			// Delete missing accounts from the projected warehouseMap
-			deleteMissingAccountsFromMap();
-			
 			
 			//Print warehouses & accounts
 			//printAccounts(account_type.HISTORY_ACCOUNTS);
@@ -117,37 +161,825 @@ public class BudgetAnalysis implements Constants {
 		} catch (BiffException e) {
 			e.printStackTrace();
 		}
+		
+		context.metrics.stop("read", start);
+		countResults();
+	}
+	
+	/*
+	 * Sizes of what the last read found, as Metrics counters
+	 */
+	void countResults() {
+		
+		context.metrics.set(Metrics.ACCOUNTS, context.accountMap.size());
+		context.metrics.set(Metrics.PROJECTED_ACCOUNTS, context.projectedAccountMap.size());
+		context.metrics.set(Metrics.WAREHOUSES, context.warehouseMap.getWarehouseCount());
+		context.metrics.set(Metrics.MISSING_ACCOUNTS, context.missingAccountList.size());
+	}
+	
+	/*
+	 * Only the history half of read(), for runs that apply several projections to it
+	 */
+	public void readHistory() throws IOException {
+		
+		try {
+			loadHistory();
+		} catch (BiffException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * readHistory() for callers that must not go on with an empty history: a workbook that 
+	 * cannot be parsed is thrown rather than reported
+	 */
+	public void loadHistory() throws IOException, BiffException {
+		
+		clear();
+		
+		try {
+			loadHistory(getInputFile(historyInputFile), context.isEnabled(strSTREAMING_READ));
+		} finally {
+			countResults();
+		}
+	}
+	
+	/*
+	 * Everything up to and including the TO_PERCENTAGE_WAREHOUSE pass. This only depends 
+	 * on the history, so it can be shared by any number of projections.
+	 */
+	public void loadHistory(File historyInputWorkbook, boolean streaming) throws IOException, BiffException {
+		
+		long start = context.metrics.start();
+		
+		if (context.isEnabled(strINCREMENTAL)) {
+			
+			// Reuses the percentage warehouseMap when the history has not changed
+			readHistoryIncremental(historyInputWorkbook, streaming);
+			
+		} else {
+			
+			// Get global accountMap and warehouseMap, which is hashed by warehouses
+			readHistorySources(historyInputWorkbook, streaming);
+			
+			// Convert global warehouseMap into values represented by %
+			// i.e., calculated via warehouseMap / accountMap
+			convertWarehouseAccounts(warehouse_type.TO_PERCENTAGE_WAREHOUSE);
+		}
+		
+		context.metrics.stop("loadHistory", start);
+	}
+	
+	/*
+	 * The history named by HIST_DATA_FILES when there is one, else sheet 0 of historyInputWorkbook
+	 */
+	private void readHistorySources(File historyInputWorkbook, boolean streaming) throws IOException, BiffException {
+		
+		long start = context.metrics.start();
+		
+		if (hasHistorySources()) 
+			readHistories(getHistorySources(), streaming);
+		else 
+			readHistory(historyInputWorkbook, streaming);
+		
+		context.metrics.stop("readHistory", start);
+	}
+	
+	public boolean hasHistorySources() {
+		String value = context.getConfig(strHIST_DATA_FILES);
+		return value != null && !value.trim().isEmpty();
+	}
+	
+	/*
+	 * HIST_DATA_FILES in config.txt: comma separated history workbooks to read together, 
+	 * each "file" for all of its sheets or "file#n" for sheet n (see HistorySource)
+	 */
+	public List<HistorySource> getHistorySources() throws IOException {
+		
+		List<HistorySource> sources = new ArrayList<HistorySource>();
+		if (!hasHistorySources()) 
+			return sources;
+		
+		for (String entry : context.getConfig(strHIST_DATA_FILES).split(",")) {
+			
+			File file = getInputFile(HistorySource.parseName(entry));
+			int sheet = HistorySource.parseSheet(entry);
+			
+			if (sheet != HistorySource.ALL_SHEETS) {
+				sources.add(new HistorySource(file, sheet));
+				continue;
+			}
+			
+			int sheets = new StreamingWorkbookReader(file).getSheetCount();
+			for (int i=0; i<sheets; i++) {
+				sources.add(new HistorySource(file, i));
+			}
+		}
+		return sources;
+	}
+	
+	/*
+	 * INGEST_THREADS in config.txt: absent or 0 uses every core
+	 */
+	public int getIngestParallelism() {
+		
+		String value = context.getConfig(strINGEST_THREADS);
+		int threads = (value == null || value.trim().isEmpty()) ? 0 : Integer.parseInt(value.trim());
+		if (threads <= 0) 
+			threads = Runtime.getRuntime().availableProcessors();
+		
+		return threads;
+	}
+	
+	/*
+	 * What one history sheet contributes
+	 */
+	static class HistoryPartial {
+		
+		AccountStore accountMap;
+		WarehouseStore warehouseMap;
+		Map<String, String[]> labels = new HashMap<String, String[]>();
+		
+		HistoryPartial(SymbolTable symbols) {
+			accountMap = new AccountStore(symbols);
+			warehouseMap = new WarehouseStore(symbols);
+		}
 	}
+	
+	/*
+	 * Read every history sheet on a task of its own, into a partial accountMap and 
+	 * warehouseMap, and fold the partials into the context in source order as they complete. 
+	 * Accounts accumulate as in addAccountData(), in the global accountMap and within a 
+	 * warehouse that more than one sheet lists, such as a warehouse in two regional or 
+	 * yearly files. Within one sheet a warehouse seen again still replaces its earlier 
+	 * accounts. Labels come from the first sheet.
+	 */
+	public void readHistories(List<HistorySource> sources, final boolean streaming) throws IOException, BiffException {
+		
+		context.histSheet = null;
+		if (sources.isEmpty()) 
+			return;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(getIngestParallelism(), sources.size()));
+		
+		try {
+			
+			List<Future<HistoryPartial>> results = new ArrayList<Future<HistoryPartial>>();
+			for (final HistorySource source : sources) {
+				results.add(executor.submit(new Callable<HistoryPartial>() {
+					public HistoryPartial call() throws Exception {
+						return readHistoryPartial(source, streaming);
+					}
+				}));
+			}
+			
+			for (Future<HistoryPartial> result : results) {
+				mergeHistory(result.get());
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) 
+				throw (IOException) cause;
+			if (cause instanceof BiffException) 
+				throw (BiffException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	public HistoryPartial readHistoryPartial(HistorySource source, boolean streaming) throws IOException, BiffException {
+		
+		HistoryPartial partial = new HistoryPartial(context.symbols);
+		long start = context.metrics.start();
+		
+		if (streaming) {
+			
+			new StreamingWorkbookReader(source.getFile()).read(source.getSheet(), 
+					new HistoryRowHandler(partial.accountMap, partial.warehouseMap, partial.labels));
+			
+		} else {
+			
+			Workbook workbook = Workbook.getWorkbook(source.getFile());
+			try {
+				
+				Sheet sheet = workbook.getSheet(source.getSheet());
+				getAccounts(sheet, context.getHistoryLayout(), partial.accountMap);
+				getWarehouseAccounts(sheet, partial.warehouseMap);
+				
+				partial.labels.put(strVOLUME_LABEL_RANGE, getLabels(sheet, strVOLUME_LABEL_RANGE));
+				partial.labels.put(strGROSS_MARGIN_LABEL_RANGE, getLabels(sheet, strGROSS_MARGIN_LABEL_RANGE));
+				
+			} finally {
+				workbook.close();
+			}
+		}
+		
+		context.metrics.stop("readHistorySheet", start);
+		return partial;
+	}
+	
+	private void mergeHistory(HistoryPartial partial) {
+		
+		AccountStore accounts = partial.accountMap;
+		for (int entity=0; entity<accounts.size(); entity++) {
+			
+			int symbol = accounts.getSymbol(entity);
+			double[] volumes = accounts.get(entity, ColumnarStore.VOLUME);
+			double[] margins = accounts.get(entity, ColumnarStore.MARGIN);
+			
+			int global = context.accountMap.indexOfSymbol(symbol);
+			if (global >= 0) 
+				context.accountMap.accumulate(global, volumes, margins);
+			else 
+				context.accountMap.put(symbol, volumes, margins);
+		}
+		
+		// A warehouse already read from an earlier sheet keeps its accounts and adds this 
+		// sheet's to them, like the global accountMap above; a new one starts here
+		WarehouseStore warehouses = partial.warehouseMap;
+		for (int w=0; w<warehouses.getWarehouseCount(); w++) {
+			
+			String name = warehouses.getWarehouseName(w);
+			int warehouse = context.warehouseMap.warehouseIdOf(name);
+			boolean seen = warehouse >= 0;
+			if (!seen) 
+				warehouse = context.warehouseMap.startWarehouse(name);
+			
+			for (int slot=0; slot<warehouses.getSlotCount(w); slot++) {
+				
+				int entity = warehouses.getEntity(w, slot);
+				if (warehouses.isRemoved(entity)) 
+					continue;
+				
+				int symbol = warehouses.getAccountId(entity);
+				double[] volumes = warehouses.get(entity, ColumnarStore.VOLUME);
+				double[] margins = warehouses.get(entity, ColumnarStore.MARGIN);
+				
+				int global = seen ? context.warehouseMap.indexOf(warehouse, symbol) : -1;
+				if (global >= 0) 
+					context.warehouseMap.accumulate(global, volumes, margins);
+				else 
+					context.warehouseMap.put(warehouse, symbol, volumes, margins);
+			}
+		}
+		
+		for (Map.Entry<String, String[]> label : partial.labels.entrySet()) {
+			if (!context.labelCache.containsKey(label.getKey())) 
+				context.labelCache.put(label.getKey(), label.getValue());
+		}
+	}
+	
+	public void readHistory(File historyInputWorkbook, boolean streaming) throws IOException, BiffException {
+		
+		if (streaming) {
+			
+			// Get global accountMap and warehouseMap in one pass over the history
+			new StreamingWorkbookReader(historyInputWorkbook).read(0, new HistoryRowHandler());
+			
+		} else {
+			
+			context.histSheet = Workbook.getWorkbook(historyInputWorkbook).getSheet(0);
+			
+			// Get global accountMap first
+			getAccounts(context.histSheet, context.getHistoryLayout(), context.accountMap);
 
-	public void deleteMissingAccountsFromMap() {
+			// Get warehouseMap, which is hashed by warehouses
+			getWarehouseAccounts(context.histSheet);
+		}
+	}
+	
+	public void readProjection(File projectionInputWorkbook, boolean streaming) throws IOException, BiffException {
+		
+		if (streaming) {
+			readProjection(projectionInputWorkbook, true, context.projectedAccountMap);
+		} else {
+			long start = context.metrics.start();
+			context.projSheet = Workbook.getWorkbook(projectionInputWorkbook).getSheet(0);
+			getAccounts(context.projSheet, context.getProjectionLayout(), context.projectedAccountMap);
+			context.metrics.stop("readProjection", start);
+		}
+	}
+	
+	/*
+	 * Read a projection workbook into the given accountMap only. The analysis' own 
+	 * projected accounts and projection sheet stay as they were, so this can run while 
+	 * other projections are being applied.
+	 */
+	public void readProjection(File projectionInputWorkbook, boolean streaming, AccountStore target) throws IOException, BiffException {
+		
+		long start = context.metrics.start();
+		
+		if (streaming) {
+			new StreamingWorkbookReader(projectionInputWorkbook).read(0, 
+					new AccountRowHandler(context.getProjectionLayout(), target));
+		} else {
+			// Nothing keeps the sheet, so release the workbook as soon as it is read; this 
+			// runs once per scenario and once per server request
+			Workbook workbook = Workbook.getWorkbook(projectionInputWorkbook);
+			try {
+				getAccounts(workbook.getSheet(0), context.getProjectionLayout(), target);
+			} finally {
+				workbook.close();
+			}
+		}
+		
+		context.metrics.stop("readProjection", start);
+	}
+	
+	/*
+	 * Apply one projection workbook to a copy of the percentage warehouseMap. The analysis' own
+	 * maps and missing list are only read, so once loadHistory() is done any number of these 
+	 * can run at the same time.
+	 */
+	public ScenarioBatch.Scenario applyProjection(String name, File projectionInputWorkbook, boolean streaming) throws IOException, BiffException {
+		
+		WarehouseStore warehouseMap = context.warehouseMap.copy();
+		AccountStore projectedAccountMap = new AccountStore(context.symbols);
+		
+		// Accounts already missing from the history belong to every scenario
+		ArrayList<String[]> missing = new ArrayList<String[]>(context.missingAccountList);
+		
+		readProjection(projectionInputWorkbook, streaming, projectedAccountMap);
+		convertWarehouseAccounts(warehouse_type.TO_PROJECTION_WAREHOUSE, warehouseMap, projectedAccountMap, missing);
+		
+		return new ScenarioBatch.Scenario(name, warehouseMap, projectedAccountMap, missing);
+	}
+	
+	/*
+	 * Read the history and the projection workbook without converting anything, and open a 
+	 * view that projects accounts as they are asked for. The warehouseMap keeps the history 
+	 * values, so this replaces read() rather than following it. Both workbooks are still 
+	 * read through, as every percentage needs the global totals; with a query set 
+	 * (setQuery()) only the query's warehouses are kept.
+	 */
+	public ProjectionView openProjectionView() throws IOException, BiffException {
+		
+		boolean streaming = isStreamingRead();
+		clear();
+		
+		long start = context.metrics.start();
+		readHistorySources(getInputFile(historyInputFile), streaming);
+		readProjection(getInputFile(projectionInputFile), streaming);
+		context.metrics.stop("openProjectionView", start);
+		
+		countResults();
+		return new ProjectionView(context.warehouseMap, context.accountMap, context.projectedAccountMap);
+	}
+	
+	/*
+	 * QUERY_WAREHOUSES and QUERY_MONTHS in config.txt, or null when neither is set
+	 */
+	public ProjectionQuery getConfiguredQuery() {
+		
+		String warehouses = context.getConfig(strQUERY_WAREHOUSES);
+		String months = context.getConfig(strQUERY_MONTHS);
+		if ((warehouses == null || warehouses.trim().isEmpty()) && (months == null || months.trim().isEmpty())) 
+			return null;
+		
+		return new ProjectionQuery(warehouses, months);
+	}
+	
+	/*
+	 * Restrict what the following reads take in to the query's warehouses and months, or 
+	 * lift the restriction with null. Month labels are looked up in the history's label 
+	 * row, which is the only part of the history read here.
+	 */
+	public void setQuery(ProjectionQuery query) throws IOException, BiffException {
+		
+		context.compileLayouts();
+		context.query = query;
+		
+		if (query == null || query.isAllMonths()) 
+			return;
+		
+		String[] labels = query.needsLabels() ? readHistoryLabels(context.getHistoryLayout().volumeLabels) : null;
+		int[] months = query.resolveMonths(labels, context.getHistoryLayout().volumes.getWidth());
+		context.sliceLayouts(months[0], months[1]);
+		
+		Log.info("Query: months " + (months[0]+1) + " to " + (months[1]+1));
+	}
+	
+	/*
+	 * The cells of one label row of the (first) history sheet, reading no further than 
+	 * that row when streaming
+	 */
+	private String[] readHistoryLabels(final SheetLayout.Range range) throws IOException, BiffException {
+		
+		File file = getInputFile(historyInputFile);
+		int sheetIndex = 0;
+		if (hasHistorySources()) {
+			HistorySource source = getHistorySources().get(0);
+			file = source.getFile();
+			sheetIndex = source.getSheet();
+		}
+		
+		final String[] labels = new String[range.getWidth()];
+		
+		if (isStreamingRead()) {
+			
+			new StreamingWorkbookReader(file).read(sheetIndex, new StreamingWorkbookReader.RowHandler() {
+				public void processRow(StreamingWorkbookReader.Row row) {
+					if (row.getRow() != range.startY) 
+						return;
+					for (int i=range.startX; i<=range.endX; i++) {
+						labels[i-range.startX] = labelContents(row, i);
+					}
+				}
+			}, range.startY);
+			
+		} else {
+			
+			Workbook workbook = Workbook.getWorkbook(file);
+			try {
+				Sheet sheet = workbook.getSheet(sheetIndex);
+				for (int i=range.startX; i<=range.endX; i++) {
+					labels[i-range.startX] = sheet.getCell(i, range.startY).getContents();
+				}
+			} finally {
+				workbook.close();
+			}
+		}
+		
+		return labels;
+	}
+	
+	/*
+	 * SCENARIO_FILES in config.txt: comma separated projection workbooks, resolved like 
+	 * PROJ_DATA_FILE_NAME
+	 */
+	public String[] getScenarioFiles() {
+		
+		String value = context.getConfig(strSCENARIO_FILES);
+		if (value == null || value.trim().isEmpty()) 
+			return new String[0];
+		
+		String[] files = value.split(",");
+		for (int i=0; i<files.length; i++) {
+			files[i] = files[i].trim();
+		}
+		return files;
+	}
+	
+	/*
+	 * SCENARIO_THREADS in config.txt: absent or 0 uses every core
+	 */
+	public int getScenarioParallelism() {
+		
+		String value = context.getConfig(strSCENARIO_THREADS);
+		int threads = (value == null || value.trim().isEmpty()) ? 0 : Integer.parseInt(value.trim());
+		if (threads <= 0) 
+			threads = Runtime.getRuntime().availableProcessors();
+		
+		return threads;
+	}
+	
+	/*
+	 * EXPORT_FORMATS in config.txt: write the warehouseMap in each listed format (see 
+	 * ProjectionExporter) next to the .xls at outputPath, swapping in the format's extension
+	 */
+	public void export(WarehouseStore warehouseMap, String outputPath) throws IOException {
+		
+		String value = context.getConfig(strEXPORT_FORMATS);
+		if (value == null || value.trim().isEmpty()) 
+			return;
+		
+		long start = context.metrics.start();
+		
+		String[] volumeLabels = getLabels(context.histSheet, strVOLUME_LABEL_RANGE);
+		String[] marginLabels = getLabels(context.histSheet, strGROSS_MARGIN_LABEL_RANGE);
+		
+		int dot = outputPath.lastIndexOf('.');
+		String base = (dot > outputPath.lastIndexOf(File.separatorChar)) ? outputPath.substring(0, dot) : outputPath;
+		
+		for (String format : value.split(",")) {
+			ProjectionExporter exporter = ProjectionExporter.forName(format);
+			exporter.export(warehouseMap, volumeLabels, marginLabels, new File(base + "." + exporter.getExtension()));
+		}
+		
+		context.metrics.stop("export", start);
+	}
+	
+	/*
+	 * METRICS_FILE in config.txt: where main() leaves the run's Metrics as JSON, resolved 
+	 * like the input files. Setting it also turns on per-row parse timing.
+	 */
+	public void writeMetrics() throws IOException {
+		
+		String value = context.getConfig(strMETRICS_FILE);
+		if (value == null || value.trim().isEmpty()) 
+			return;
+		
+		context.metrics.writeJson(getInputFile(value.trim()));
+	}
+	
+	/*
+	 * The context's own cache file when one is set, else HISTORY_CACHE_FILE in config.txt, 
+	 * else historyCachePath. Analyses in the same JVM that should not share their history 
+	 * result need different files.
+	 */
+	public File getHistoryCacheFile() {
+		
+		if (context.historyCacheFile != null) 
+			return context.historyCacheFile;
+		
+		String value = context.getConfig(strHISTORY_CACHE_FILE);
+		if (value == null || value.trim().isEmpty()) 
+			return new File(historyCachePath);
+		
+		return getInputFile(value.trim());
+	}
+	
+	public boolean isStreamingRead() {
+		return context.isEnabled(strSTREAMING_READ);
+	}
+	
+	/*
+	 * INCREMENTAL=true: the history result up to and including the TO_PERCENTAGE_WAREHOUSE 
+	 * pass is kept in getHistoryCacheFile(), keyed by the history file's content hash. When 
+	 * the key still matches only the projection has to be read.
+	 */
+	public void readHistoryIncremental(File historyInputWorkbook, boolean streaming) throws IOException, BiffException {
+		
+		HistoryCache cache = new HistoryCache(getHistoryCacheFile());
+		List<File> files = new ArrayList<File>();
+		if (hasHistorySources()) {
+			for (HistorySource source : getHistorySources()) {
+				if (!files.contains(source.getFile())) 
+					files.add(source.getFile());
+			}
+		} else {
+			files.add(historyInputWorkbook);
+		}
+		String key = HistoryCache.computeKey(files, context.config);
+		
+		HistoryCache.Entry entry = cache.load(key, context.symbols);
+		if (entry != null) {
+			
+			Log.info("Reusing percentage warehouseMap for history " + key);
+			
+			context.accountMap = entry.accounts;
+			context.warehouseMap = entry.warehouses;
+			context.labelCache.putAll(entry.labels);
+			context.missingAccountList.addAll(entry.missing);
+			maskMissingAccounts(context.warehouseMap, entry.missing);
+			return;
+		}
+		
+		readHistorySources(historyInputWorkbook, streaming);
+		convertWarehouseAccounts(warehouse_type.TO_PERCENTAGE_WAREHOUSE);
+		
+		// Later runs will not have the Sheet to read the labels from
+		if (context.histSheet != null) {
+			context.labelCache.put(strVOLUME_LABEL_RANGE, getLabels(context.histSheet, strVOLUME_LABEL_RANGE));
+			context.labelCache.put(strGROSS_MARGIN_LABEL_RANGE, getLabels(context.histSheet, strGROSS_MARGIN_LABEL_RANGE));
+		}
+		
+		cache.save(new HistoryCache.Entry(key, context.accountMap, context.warehouseMap, context.labelCache, context.missingAccountList));
+	}
+	
+	/*
+	 * Streaming counterpart of getAccounts()/getAccountData()
+	 */
+	class AccountRowHandler implements StreamingWorkbookReader.RowHandler {
+		
+		private int accountX, firstY, lastY;
+		private int startingVolumeX, endingVolumeX;
+		private int startingMarginX, endingMarginX;
+		private AccountStore target;
+		private SpilledAccounts spilled;
+		private AtomicLong rows = context.metrics.counter(Metrics.ACCOUNT_ROWS);
+		private Metrics.Histogram parseNanos = context.metrics.histogram(Metrics.ROW_PARSE_NANOS);
+		
+		AccountRowHandler(SheetLayout layout, AccountStore target) {
+			this(layout);
+			this.target = target;
+		}
+		
+		/*
+		 * Totals kept within a memory budget, see BoundedRun
+		 */
+		AccountRowHandler(SheetLayout layout, SpilledAccounts spilled) {
+			this(layout);
+			this.spilled = spilled;
+		}
+		
+		private AccountRowHandler(SheetLayout layout) {
+			
+			accountX = layout.accounts.startX;
+			firstY = layout.accounts.startY;
+			lastY = layout.accounts.endY;
+			
+			startingVolumeX = layout.volumes.startX;
+			endingVolumeX = layout.volumes.endX;
+			
+			startingMarginX = layout.margins.startX;
+			endingMarginX = layout.margins.endX;
+		}
+		
+		public void processRow(StreamingWorkbookReader.Row row) {
+			
+			int y = row.getRow();
+			if (y < firstY || y > lastY) 
+				return;
+			
+			String accountName = row.getContents(accountX);
+			if (accountName.isEmpty() == false) {
+				
+				rows.incrementAndGet();
+				
+				long start = context.metrics.isRowTiming() ? System.nanoTime() : 0;
+				double[] volumeData = getDataPerAccount(row, startingVolumeX, endingVolumeX);
+				double[] marginData = getDataPerAccount(row, startingMarginX, endingMarginX);
+				if (start != 0) 
+					parseNanos.record(System.nanoTime() - start);
+				
+				if (spilled == null) {
+					addAccountData(target, accountName, volumeData, marginData);
+				} else {
+					try {
+						spilled.add(accountName, volumeData, marginData);
+					} catch (IOException e) {
+						throw new IllegalStateException("Spilling account totals failed", e);
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Streaming counterpart of getAccounts() + getWarehouseAccounts() + getLabels() on the history sheet
+	 */
+	class HistoryRowHandler implements StreamingWorkbookReader.RowHandler {
+		
+		private AccountRowHandler accounts;
+		private WarehouseSink warehouses;
+		private Map<String, String[]> labels;
+		private SheetLayout layout;
+		private int warehouseX, warehouseY;
+		private int startingVolumeX, endingVolumeX;
+		private int startingMarginX, endingMarginX;
+		private String warehouseName = null;
+		private AtomicLong rows = context.metrics.counter(Metrics.WAREHOUSE_ROWS);
+		private Metrics.Histogram parseNanos = context.metrics.histogram(Metrics.ROW_PARSE_NANOS);
+		
+		HistoryRowHandler() {
+			this(context.accountMap, context.warehouseMap, context.labelCache);
+		}
+		
+		HistoryRowHandler(AccountStore accountMap, WarehouseStore warehouseMap, Map<String, String[]> labels) {
+			this(new AccountRowHandler(context.getHistoryLayout(), accountMap), warehouseMap, labels);
+		}
+		
+		/*
+		 * Totals and warehouses kept within a memory budget, see BoundedRun
+		 */
+		HistoryRowHandler(SpilledAccounts accountTotals, SpilledWarehouses warehouses, Map<String, String[]> labels) {
+			this(new AccountRowHandler(context.getHistoryLayout(), accountTotals), warehouses, labels);
+		}
+		
+		private HistoryRowHandler(AccountRowHandler accounts, WarehouseSink warehouses, Map<String, String[]> labels) {
+			
+			this.layout = context.getHistoryLayout();
+			this.accounts = accounts;
+			this.warehouses = warehouses;
+			this.labels = labels;
+			
+			warehouseX = layout.warehouseStart.startX;
+			warehouseY = layout.warehouseStart.startY;
+			
+			startingVolumeX = layout.volumes.startX;
+			endingVolumeX = layout.volumes.endX;
+			
+			startingMarginX = layout.margins.startX;
+			endingMarginX = layout.margins.endX;
+		}
+		
+		public void processRow(StreamingWorkbookReader.Row row) {
+			
+			accounts.processRow(row);
+			
+			captureLabels(row, strVOLUME_LABEL_RANGE, layout.volumeLabels);
+			captureLabels(row, strGROSS_MARGIN_LABEL_RANGE, layout.marginLabels);
+			
+			if (row.getRow() < warehouseY) 
+				return;
+			
+			String tmpName = row.getContents(warehouseX);
+			String accountName = row.getContents(warehouseX+1);
+			if (!tmpName.isEmpty() || !accountName.isEmpty()) 
+				rows.incrementAndGet();
+			
+			if (skipsWarehouseRow(warehouseName, tmpName)) {
+				warehouseName = skippedWarehouseName(warehouseName, tmpName);
+				return;
+			}
+			
+			double[] volumeData = null;
+			double[] marginData = null;
+			if (isWarehouseDataRow(tmpName, accountName)) {
+				long start = context.metrics.isRowTiming() ? System.nanoTime() : 0;
+				volumeData = getDataPerAccount(row, startingVolumeX, endingVolumeX);
+				marginData = getDataPerAccount(row, startingMarginX, endingMarginX);
+				if (start != 0) 
+					parseNanos.record(System.nanoTime() - start);
+			}
+			
+			warehouseName = addWarehouseRow(warehouses, warehouseName, tmpName, accountName, volumeData, marginData);
+		}
+		
+		private void captureLabels(StreamingWorkbookReader.Row row, String key, SheetLayout.Range range) {
+			
+			if (row.getRow() != range.startY) 
+				return;
+			
+			String[] labels = new String[range.getWidth()];
+			for (int i=range.startX; i<=range.endX; i++) {
+				labels[i-range.startX] = labelContents(row, i);
+			}
+			this.labels.put(key, labels);
+		}
+	}
+	
+	/*
+	 * A label cell read by the streaming reader. Cell formats are not applied there, so a 
+	 * date or formatted number label would not read as it does through jxl; say so rather 
+	 * than let the headers and QUERY_MONTHS change with STREAMING_READ.
+	 */
+	private String labelContents(StreamingWorkbookReader.Row row, int column) {
+		
+		if (row.isNumber(column)) 
+			Log.warnLimited("numericLabel", "Label cell " + CellReferenceHelper.getCellReference(column, row.getRow()) 
+					+ " is a number; STREAMING_READ shows it as " + row.getContents(column) 
+					+ " without its cell format, make labels text cells");
+		
+		return row.getContents(column);
+	}
+	
+	/*
+	 * Streaming counterpart of getVolumeDataPerAccount()/getMarginDataPerAccount(). Numeric 
+	 * cells are taken as is; text cells go through AmountParser.
+	 */
+	public double[] getDataPerAccount(StreamingWorkbookReader.Row row, int start, int end) {
+		
+		double[] dataArray = new double[end - start + 1];
+		int i = 0;
+		for (int index=start; index<=end; index++) {
+			
+			if (row.isNumber(index)) {
+				dataArray[i] = row.getNumber(index);
+			} else {
+				String contents = row.getContents(index);
+				dataArray[i] = AmountParser.parse(contents);
 				
-		// Let's delete missing entries from the gWarehouseMap 
-		// This is the last step that needs to happen before projection is generated							
-		Iterator<String[]> it = missingAccountList.iterator();
-	    while (it.hasNext()) {
-	    	
-	    	String[] account = (String[])it.next();	    	
-	    	String _warehouseName = account[0];
-	    	String _accountName = account[1];
-	    	
-	    	Map<String, ArrayList<double[]>> aMap = gWarehouseMap.get(_warehouseName);
-	    	aMap.remove(_accountName);
-	    }		
+				if (verifyCellParsing) 
+					verifyCellValue(row.getRow(), index, contents, dataArray[i]);
+			}
+			
+			i++;
+		}
+		
+		return dataArray;
+	}
+
+	/*
+	 * Mask the listed accounts out of the warehouseMap. convertWarehouse() masks what it 
+	 * finds missing as it goes; this is only for a list that comes without its mask, such as 
+	 * the one kept in the history cache.
+	 */
+	public void maskMissingAccounts(WarehouseStore warehouseMap, List<String[]> missing) {
+		
+		for (String[] account : missing) {
+			
+			int entity = warehouseMap.indexOf(warehouseMap.warehouseIdOf(account[0]), account[1]);
+			if (entity >= 0) 
+				warehouseMap.markMissing(entity);
+		}
 	}
 	
 	public Sheet getHistSheet() {
-		return histSheet;
+		return context.histSheet;
 	}
 
 	public Sheet getProjSheet() {
-		return projSheet;
+		return context.projSheet;
 	}
 
 	public void loadConfig() {
+		loadConfig(configDataPath);
+	}
+	
+	public void loadConfig(String path) {
 
+		long start = context.metrics.start();
+		
 		try {
 			
-			FileInputStream fstream = new FileInputStream(configDataPath);
+			FileInputStream fstream = new FileInputStream(path);
 			DataInputStream in = new DataInputStream(fstream);
 			BufferedReader br = new BufferedReader(new InputStreamReader(in));
 			String strLine = null;
@@ -160,137 +992,227 @@ public class BudgetAnalysis implements Constants {
 				String key = theline[0];
 				String value = theline[1];
 				
-				if (configHash.containsKey(key)) {
-					configHash.remove(key);
+				if (context.config.containsKey(key)) {
+					context.config.remove(key);
 				}
 				
-				configHash.put(key, value);				
-				System.out.println(key + " | " + value);
+				context.config.put(key, value);				
+				Log.info(key + " | " + value);
 			}
 			in.close();
+			
+			verifyCellParsing = context.isEnabled(strVERIFY_CELL_PARSING);
 
 			
 		} catch (Exception e) {
-			System.err.println("loadConfig Error: " + e.getMessage());
+			Log.error("loadConfig Error: " + e.getMessage());
 		}
+		
+		// Check the ranges now rather than part way through reading a sheet
+		context.compileLayouts();
+		
+		context.metrics.setRowTiming(context.getConfig(strMETRICS_FILE) != null);
+		context.metrics.stop("loadConfig", start);
 	}				
 
 	public double getWarehouseDataByMonth(warehouse_type type, double local, double global) {
 		
-		double retVal = 0f;
+		double retVal = 0f;
+		
+		if (type == warehouse_type.TO_PERCENTAGE_WAREHOUSE) 
+			retVal = local/global;
+		else
+			retVal = local*global;
+		
+		return retVal; 
+	}
+	
+	/*
+	 * Take warehouseMap and divide by each account's total volume and gross margin per month
+	 * to arrive at the map that now includes the % for each account per month 
+	 */
+	public void convertWarehouseAccounts(warehouse_type type) {
+		
+		AccountStore globalAccountMap = context.accountMap;
+		if (type == warehouse_type.TO_PROJECTION_WAREHOUSE) 
+			globalAccountMap = context.projectedAccountMap;
+		
+		convertWarehouseAccounts(type, context.warehouseMap, globalAccountMap, context.missingAccountList);
+	}
+	
+	/*
+	 * Convert the given warehouseMap in place against the given global accountMap
+	 */
+	public void convertWarehouseAccounts(warehouse_type type, WarehouseStore warehouseMap, AccountStore globalAccountMap, ArrayList<String[]> missing) {
+		
+		long start = context.metrics.start();
+		
+		int parallelism = getConvertParallelism();
+		if (parallelism > 1 && warehouseMap.getWarehouseCount() > 1) {
+			convertWarehouseAccountsInParallel(type, warehouseMap, globalAccountMap, missing, parallelism);
+		} else {
+			// Iterate through each warehouse
+			for (int warehouse=0; warehouse<warehouseMap.getWarehouseCount(); warehouse++) {			
+				convertWarehouse(type, warehouseMap, globalAccountMap, warehouse, missing);
+			}
+		}
+		
+		context.metrics.stop("convertWarehouseAccounts." + type, start);
+	}
+	
+	/*
+	 * Warehouses own disjoint slices of the store, so each one is converted as its own task. 
+	 * Every task collects its missing accounts into a list of its own; the lists are appended 
+	 * to the missing list in warehouse order once all tasks are done, which keeps the 
+	 * missing-accounts output identical to the single threaded run.
+	 */
+	public void convertWarehouseAccountsInParallel(final warehouse_type type, final WarehouseStore warehouseMap, 
+			final AccountStore globalAccountMap, ArrayList<String[]> missing, int parallelism) {
+		
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		
+		try {
+			
+			ArrayList<Future<ArrayList<String[]>>> results = new ArrayList<Future<ArrayList<String[]>>>();
+			for (int warehouse=0; warehouse<warehouseMap.getWarehouseCount(); warehouse++) {
+				
+				final int w = warehouse;
+				results.add(executor.submit(new Callable<ArrayList<String[]>>() {
+					public ArrayList<String[]> call() {
+						ArrayList<String[]> warehouseMissing = new ArrayList<String[]>();
+						convertWarehouse(type, warehouseMap, globalAccountMap, w, warehouseMissing);
+						return warehouseMissing;
+					}
+				}));
+			}
+			
+			for (Future<ArrayList<String[]>> result : results) {
+				missing.addAll(result.get());
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("convertWarehouseAccounts interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("convertWarehouseAccounts failed", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/*
+	 * AGGREGATION_MEMORY_MB in config.txt: the heap the account totals of a bounded run 
+	 * (see BoundedRun) may take, in megabytes; 0 when runs are not bounded
+	 */
+	public long getAggregationBudget() {
+		
+		String value = context.getConfig(strAGGREGATION_MEMORY_MB);
+		if (value == null || value.trim().isEmpty()) 
+			return 0;
 		
-		if (type == warehouse_type.TO_PERCENTAGE_WAREHOUSE) 
-			retVal = local/global;
-		else
-			retVal = local*global;
+		return Math.max((long) (Double.parseDouble(value.trim()) * 1024 * 1024), 0);
+	}
+	
+	/*
+	 * SPILL_DIRECTORY in config.txt: where bounded runs put their temp files; absent uses 
+	 * the system temp directory
+	 */
+	public File getSpillDirectory() {
 		
-		return retVal; 
+		String value = context.getConfig(strSPILL_DIRECTORY);
+		if (value == null || value.trim().isEmpty()) 
+			return null;
+		
+		return getInputFile(value.trim());
 	}
 	
 	/*
-	 * Take warehouseMap and divide by each account's total volume and gross margin per month
-	 * to arrive at the map that now includes the % for each account per month 
+	 * PIPELINE_QUEUE in config.txt: how many converted warehouses may wait for the writer
 	 */
-	public void convertWarehouseAccounts(warehouse_type type) {
+	public int getPipelineQueueCapacity() {
 		
-		Map<String, ArrayList<double[]>> globalAccountMap = gAccountMap;
-		if (type == warehouse_type.TO_PROJECTION_WAREHOUSE) 
-			globalAccountMap = gProjectedAccountMap;
-			
+		String value = context.getConfig(strPIPELINE_QUEUE);
+		if (value == null || value.trim().isEmpty()) 
+			return Pipeline.DEFAULT_QUEUE_CAPACITY;
+		
+		return Integer.parseInt(value.trim());
+	}
+	
+	/*
+	 * CONVERT_THREADS in config.txt: absent or 1 runs single threaded, 0 uses every core
+	 */
+	public int getConvertParallelism() {
+		
+		String value = context.getConfig(strCONVERT_THREADS);
+		if (value == null || value.trim().isEmpty()) 
+			return 1;
+		
+		int threads = Integer.parseInt(value.trim());
+		if (threads <= 0) 
+			threads = Runtime.getRuntime().availableProcessors();
+		
+		return threads;
+	}
+	
+	/*
+	 * Convert every account of one warehouse in place, adding the accounts that have no 
+	 * global counterpart to the given missing list
+	 */
+	public void convertWarehouse(warehouse_type type, WarehouseStore warehouseMap, AccountStore globalAccountMap, int warehouse, ArrayList<String[]> missing) {
 		
-		// Iterate through each warehouse
-		for (Map.Entry<String, Map<String, ArrayList<double[]>>> warehouseEntry : gWarehouseMap.entrySet()) {			
+		double[] local = warehouseMap.getData();
+		double[] global = globalAccountMap.getData();
+		int volumeMonths = warehouseMap.getVolumeMonths();
+		int marginMonths = warehouseMap.getMarginMonths();
+		boolean sameSize = globalAccountMap.getVolumeMonths() == volumeMonths 
+				&& globalAccountMap.getMarginMonths() == marginMonths;
 
-			// Get warehouseName = 
-			String warehouseName = warehouseEntry.getKey();
+		boolean sameSymbols = warehouseMap.getSymbols() == globalAccountMap.getSymbols();
+		
+		// Get warehouseName = 
+		String warehouseName = warehouseMap.getWarehouseName(warehouse);
+		
+		// Iterate through each account belonging to the warehouse
+		for (int slot=0; slot<warehouseMap.getSlotCount(warehouse); slot++) {
 			
-			// Get accountMap
-			Map<String, ArrayList<double[]>> acctMap = warehouseEntry.getValue();
+			int entity = warehouseMap.getEntity(warehouse, slot);
+			if (warehouseMap.isRemoved(entity)) 
+				continue;
+			
+			// GLOBAL: Get the account from the global accountMap, by symbol when both stores 
+			// intern their names in the same table
+			int globalEntity = sameSymbols 
+					? globalAccountMap.indexOfSymbol(warehouseMap.getAccountId(entity)) 
+					: globalAccountMap.indexOf(warehouseMap.getAccountName(entity));
 
-			// Iterate through each account belonging to each warehouse
-			for (Map.Entry<String, ArrayList<double[]>> accountEntry : acctMap.entrySet()) {
+			if (globalEntity < 0) {
 				
-				String accountName = accountEntry.getKey();				
+				String accountName = warehouseMap.getAccountName(entity);
 				
-				//System.out.println("For account: " + accountName);
+				if (Log.isEnabled(Log.Level.INFO)) 
+					Log.info("Global list is NULL for " + warehouseName + " | " + accountName);
 				
-				// GLOBAL: Get the array list from the global accountMap
-				ArrayList<double[]> globalList = globalAccountMap.get(accountName);
-
-				// LOCAL: Get the array list from local accountMap
-				ArrayList<double[]> localList = accountEntry.getValue();				
-
-				if (globalList == null) {
-					
-					System.out.println("Global list is NULL for " + warehouseName + " | " + accountName);
-					
-					// Add to the missing account list
-					missingAccountList.add(new String[] {warehouseName, accountName});					
-					
-				} else {
-					
-					double[] globalVolumes = globalList.get(0);
-					double[] localVolumes = localList.get(0);
-					double[] globalMargins = globalList.get(1);
-					double[] localMargins = localList.get(1);
-					
-					int len = localVolumes.length;
+				// Add to the missing account list, and mask it out of the output
+				missing.add(new String[] {warehouseName, accountName});					
+				warehouseMap.markMissing(entity);
 				
-					if (globalVolumes.length != localVolumes.length || globalMargins.length != localMargins.length ) {						
-						System.out.println("Global Size != Local Size");
-					} else {
-						
-						//double[] localVolumesInPercent = new double[localVolumes.length];
-						//double[] localMarginsInPercent = new double[globalMargins.length];
-						
-						// Convert local volume list & local margin list into %, and save
-						// the results back to the original local list, to be put back to the 
-						// original master map
-						for (int i=0; i<len; i++) {
-
-							if (globalVolumes[i] != 0) {
-								localVolumes[i] = getWarehouseDataByMonth(
-														type, 
-														localVolumes[i], 
-														globalVolumes[i]
-													);
-							} else { 
-								localVolumes[i] = 0f;
-							}
-							//dataText += "\t" + getCustomFormat(localVolumes[i]);														
-						}		
-						
-						for  (int j=0; j<len; j++) {
-							
-							if (globalMargins[j] != 0) {
-								localMargins[j] = getWarehouseDataByMonth(
-														type, 
-														localMargins[j], 
-														globalMargins[j]
-													);		
-							} else { 
-								localMargins[j] = 0f;
-							}					
-							//dataText += "\t" + getCustomFormat(localMargins[j]);							
-						}
-												
-						//dataText += 'n';
-
-						// Put newly generated array lists into acctMap before next list iteration
-						localList.set(0, localVolumes);
-						localList.set(1, localMargins);
-						
-						acctMap.put(accountName, localList);
-					} 
-					
-				} //end outer if 
+			} else if (sameSize == false) {						
+				Log.warnLimited("Global Size != Local Size", "Global Size != Local Size");
+			} else {
 				
-				gWarehouseMap.put(warehouseName, acctMap);
-			}					
+				// Convert local volumes & local margins into %, and save the results 
+				// back into the same slots of the warehouse store. Margins follow volumes 
+				// in both blocks, so one kernel call covers the whole account.
+				int localOffset = warehouseMap.offset(entity, ColumnarStore.VOLUME);
+				int globalOffset = globalAccountMap.offset(globalEntity, ColumnarStore.VOLUME);
+				
+				if (type == warehouse_type.TO_PERCENTAGE_WAREHOUSE) 
+					MonthKernel.divide(local, localOffset, global, globalOffset, volumeMonths + marginMonths);
+				else 
+					MonthKernel.multiply(local, localOffset, global, globalOffset, volumeMonths + marginMonths);
+				
+			} //end outer if 
 		}
-		
-		//System.out.println(dataText);						
-		//writeFile(dataText);
 	}
 	
 	public String getCustomFormat(double value) {
@@ -301,146 +1223,187 @@ public class BudgetAnalysis implements Constants {
 	}
 	
 	public void getWarehouseAccounts(Sheet sheet) {
+		getWarehouseAccounts(sheet, context.warehouseMap);
+	}
+	
+	public void getWarehouseAccounts(Sheet sheet, WarehouseStore warehouseMap) {
 		
 		// This method loads all of the entries verbatim from the history.xls data
 		// and generates a hash map of map of arraylist		
-		Cell cell = sheet.getCell(configHash.get(strWAREHOUSE_DATA_STARTING_COORDINATE));
-		int accountX = cell.getColumn();
-		int accountY = cell.getRow();
+		SheetLayout layout = context.getHistoryLayout();
+		int accountX = layout.warehouseStart.startX;
+		int accountY = layout.warehouseStart.startY;
 		int numRows = sheet.getRows();
 		String warehouseName = null;
 		
+		long start = context.metrics.start();
+		boolean rowTiming = context.metrics.isRowTiming();
+		Metrics.Histogram parseNanos = context.metrics.histogram(Metrics.ROW_PARSE_NANOS);
+		long rows = 0;
+		
 		// Iterate through each warehouse name
 		for (;accountY<numRows; accountY++) {
 			
 			Cell tmpCell = sheet.getCell(accountX, accountY);
 			String tmpName = tmpCell.getContents();
 			String accountName = sheet.getCell(accountX+1, accountY).getContents();
-						
-			if (tmpName.isEmpty() || tmpName == null || tmpName =="") {
-								
-				// check to see if its neighbor, i.e., accountName, has any stuff in it				
-				if (accountName.isEmpty() == false) {
-				
-					// Let's pull the existing account map out and add this entry to it
-					if (gWarehouseMap.containsKey(warehouseName)) {
-						
-						Map<String, ArrayList<double[]>> accountMap = gWarehouseMap.get(warehouseName);
-												
-						if (accountMap.isEmpty()) {
-							System.out.println("ACCOUNT MAP IS NULL: " + warehouseName + " | " + accountName);
-						}
-						
-						//===============
-						// Get volumeData
-						//===============
-						String volumeRange = configHash.get(strVOLUME_DATA_RANGE);
-						String[] vRange = volumeRange.split(":");
-						int startingVolumeX = sheet.getCell(vRange[0]).getColumn();		
-						int endingVolumeX = sheet.getCell(vRange[1]).getColumn();
-						double[] volumeData = getVolumeDataPerAccount(sheet, startingVolumeX, endingVolumeX, accountY);
-												
-						//===============				
-						// Get gross margins
-						//===============
-						String marginRange = configHash.get(strGROSS_MARGIN_RANGE);
-						String[] mRange = marginRange.split(":");
-						int startingMarginX = sheet.getCell(mRange[0]).getColumn();		
-						int endingMarginX = sheet.getCell(mRange[1]).getColumn();
-						double[] marginData = getMarginDataPerAccount(sheet, startingMarginX, endingMarginX, accountY);
-
-						// Let's update the list
-						ArrayList<double[]> list = accountMap.get(accountName);
-
-						if (list == null) {							
-							//System.out.println("here: " + Arrays.toString(volumeData));
-							list = new ArrayList<double[]>();
-							list.add(0, volumeData);
-							list.add(1, marginData);
-						} else {
-							list.set(0, volumeData);
-							list.set(1, marginData);
-						}
-																		
-						// Add updated list to accountMap
-						accountMap.put(accountName, list);												
-
-						// put this into map
-						gWarehouseMap.put(warehouseName, accountMap);
+			
+			// Counted as the streaming reader sees rows: only those with a name in them
+			if (!tmpName.isEmpty() || !accountName.isEmpty()) 
+				rows++;
+			
+			if (skipsWarehouseRow(warehouseName, tmpName)) {
+				warehouseName = skippedWarehouseName(warehouseName, tmpName);
+				continue;
+			}
 
-						//System.out.println("HASHING: " + warehouseName + " with " + accountName);
-						
-					} else {
-						System.out.println("WAREHOUSE NOT IN EXISTENCE: " + warehouseName);
-					}
-					
-	
-				}				
-				
-			} else if (tmpName.matches("(?i).*Total.*")) {
+			double[] volumeData = null;
+			double[] marginData = null;
 			
-				//warehouseName = null;				
-				//System.out.println("TOTAL: " + tmpName);
+			if (isWarehouseDataRow(tmpName, accountName)) {
 				
-			} else {
-
-				warehouseName = tmpName;
-								
-				// check to see if its neighbor, i.e., accountName, has any stuff in it
-				// If so, let's create an account map here
-				if (accountName.isEmpty() == false) {
+				long rowStart = rowTiming ? System.nanoTime() : 0;
 				
-					Map<String, ArrayList<double[]>> accountMap = new HashMap<String, ArrayList<double[]>>(); 
-					ArrayList<double[]> list = new ArrayList<double[]>();
-					
-					// Add to list
-					//===============
-					// Get volumeData
-					//===============
-					String volumeRange = configHash.get(strVOLUME_DATA_RANGE);
-					String[] vRange = volumeRange.split(":");
-					int startingVolumeX = sheet.getCell(vRange[0]).getColumn();		
-					int endingVolumeX = sheet.getCell(vRange[1]).getColumn();
-					double[] volumeData = getVolumeDataPerAccount(sheet, startingVolumeX, endingVolumeX, accountY);
-					list.add(0, volumeData);
-											
-					//===============				
-					// Get gross margins
-					//===============
-					String marginRange = configHash.get(strGROSS_MARGIN_RANGE);
-					String[] mRange = marginRange.split(":");
-					int startingMarginX = sheet.getCell(mRange[0]).getColumn();		
-					int endingMarginX = sheet.getCell(mRange[1]).getColumn();
-					double[] marginData = getMarginDataPerAccount(sheet, startingMarginX, endingMarginX, accountY);
-					list.add(1, marginData);
-					
-					// Add updated list to accountMap
-					accountMap.put(accountName, list);
+				//===============
+				// Get volumeData
+				//===============
+				volumeData = getVolumeDataPerAccount(sheet, layout.volumes.startX, layout.volumes.endX, accountY);
+										
+				//===============				
+				// Get gross margins
+				//===============
+				marginData = getMarginDataPerAccount(sheet, layout.margins.startX, layout.margins.endX, accountY);
+				
+				if (rowTiming) 
+					parseNanos.record(System.nanoTime() - rowStart);
+			}
+			
+			warehouseName = addWarehouseRow(warehouseMap, warehouseName, tmpName, accountName, volumeData, marginData);
+		}		
+		
+		context.metrics.add(Metrics.WAREHOUSE_ROWS, rows);
+		context.metrics.stop("getWarehouseAccounts", start);
+	}
+	
+	/*
+	 * With a query set, whether the row belongs to a warehouse the query leaves out: a 
+	 * warehouse's first row is judged by its own name, the rows below it by the name of 
+	 * the warehouse they are in
+	 */
+	private boolean skipsWarehouseRow(String warehouseName, String tmpName) {
+		
+		if (context.query == null || context.query.isAllWarehouses()) 
+			return false;
+		
+		return !context.query.selectsWarehouse(tmpName.isEmpty() ? warehouseName : tmpName);
+	}
+	
+	/*
+	 * The warehouse that is current after a skipped row, as addWarehouseRow() would have it
+	 */
+	private String skippedWarehouseName(String warehouseName, String tmpName) {
+		
+		if (tmpName.isEmpty() || tmpName.matches("(?i).*Total.*")) 
+			return warehouseName;
+		return tmpName;
+	}
+	
+	/*
+	 * Only rows carrying an account name, and not sitting on a warehouse "Total" line, 
+	 * have volumes and margins worth extracting
+	 */
+	public boolean isWarehouseDataRow(String tmpName, String accountName) {
+		
+		if (accountName.isEmpty()) 
+			return false;
+		
+		return tmpName.isEmpty() || tmpName.matches("(?i).*Total.*") == false;
+	}
+	
+	public String addWarehouseRow(String warehouseName, String tmpName, String accountName, double[] volumeData, double[] marginData) {
+		return addWarehouseRow(context.warehouseMap, warehouseName, tmpName, accountName, volumeData, marginData);
+	}
+	
+	/*
+	 * Apply one history row to the warehouseMap. A non-empty first column starts a new warehouse, 
+	 * an empty one adds the account to the current warehouse. Returns the warehouse that is 
+	 * current after this row.
+	 */
+	public String addWarehouseRow(WarehouseSink warehouseMap, String warehouseName, String tmpName, String accountName, double[] volumeData, double[] marginData) {
+		
+		if (tmpName.isEmpty() || tmpName == null || tmpName =="") {
+							
+			// check to see if its neighbor, i.e., accountName, has any stuff in it				
+			if (accountName.isEmpty() == false) {
+			
+				// Let's pull the existing warehouse out and add this entry to it
+				int warehouse = warehouseMap.warehouseIdOf(warehouseName);
+				if (warehouse >= 0) {
 					
-					// put this into warehouse map
-					gWarehouseMap.put(warehouseName, accountMap);
+					if (warehouseMap.isEmpty(warehouse)) {
+						if (Log.isEnabled(Log.Level.WARN)) 
+							Log.warn("ACCOUNT MAP IS NULL: " + warehouseName + " | " + accountName);
+					}
 					
-					//System.out.println("CREATING " + warehouseName + " with " + accountName);
+					// Add or update the account within this warehouse
+					warehouseMap.put(warehouse, accountName, volumeData, marginData);
+
+					//System.out.println("HASHING: " + warehouseName + " with " + accountName);
 					
 				} else {
-					System.out.println("ACCOUNT NAME IS EMPTY for WAREHOUSE: " + warehouseName);
+					if (Log.isEnabled(Log.Level.WARN)) 
+						Log.warn("WAREHOUSE NOT IN EXISTENCE: " + warehouseName);
 				}
 				
+
+			}				
+			
+		} else if (tmpName.matches("(?i).*Total.*")) {
+		
+			//warehouseName = null;				
+			//System.out.println("TOTAL: " + tmpName);
+			
+		} else {
+
+			warehouseName = tmpName;
+							
+			// check to see if its neighbor, i.e., accountName, has any stuff in it
+			// If so, let's start this warehouse's account list here
+			if (accountName.isEmpty() == false) {
+			
+				int warehouse = warehouseMap.startWarehouse(warehouseName);
+				warehouseMap.put(warehouse, accountName, volumeData, marginData);
+				
+				//System.out.println("CREATING " + warehouseName + " with " + accountName);
+				
+			} else {
+				if (Log.isEnabled(Log.Level.WARN)) 
+					Log.warn("ACCOUNT NAME IS EMPTY for WAREHOUSE: " + warehouseName);
 			}
-		}		
+			
+		}
+		
+		return warehouseName;
 	}
 	
 	
+	/*
+	 * The range keys name the history or projection ranges; their bounds come from the 
+	 * compiled SheetLayout of that sheet
+	 */
 	public void getAccounts(Sheet sheet, String accountRange, String vRange, String mRange, boolean isProjection) {
+		getAccounts(sheet, getLayout(isProjection), isProjection ? context.projectedAccountMap : context.accountMap);
+	}
+	
+	public void getAccounts(Sheet sheet, SheetLayout layout, AccountStore map) {
 		
 		// Determine the starting X, Y for all account names
-		String strAccountRange = configHash.get(accountRange);
-		String[] acctRangeArray = strAccountRange.split(":");
-		Cell cell = sheet.getCell(acctRangeArray[0]);
-				
-		int accountX = cell.getColumn();
-		int accountY = cell.getRow();	
-		int numRows = sheet.getCell(acctRangeArray[1]).getRow();	
+		int accountX = layout.accounts.startX;
+		int accountY = layout.accounts.startY;	
+		int numRows = layout.accounts.endY;	
+		
+		long start = context.metrics.start();
+		long rows = 0;
 				
 		// Iterate through each account name
 		for (;accountY<=numRows; accountY++) {
@@ -453,157 +1416,197 @@ public class BudgetAnalysis implements Constants {
 			} else {				
 
 				String accountName = sheet.getCell(accountX, accountY).getContents();
+				rows++;
 				
 				//System.out.println("Account = " + accountName);
 
 				// Let's get the volumes and gross margins for this account
-				getAccountData(accountName, sheet, accountY, vRange, mRange, isProjection);
+				getAccountData(accountName, sheet, accountY, layout, map);
 				
 			}
 		}
 		
+		context.metrics.add(Metrics.ACCOUNT_ROWS, rows);
+		context.metrics.stop("getAccounts", start);
+		
 				
 	}
 	
 	
+	/*
+	 * The compiled ranges of the projection or the history sheet
+	 */
+	public SheetLayout getLayout(boolean isProjection) {
+		return isProjection ? context.getProjectionLayout() : context.getHistoryLayout();
+	}
+	
 	public void getAccountData(String name, Sheet sheet, int rowY, String vRange, String mRange, boolean isProjection) {
+		getAccountData(name, sheet, rowY, getLayout(isProjection), isProjection ? context.projectedAccountMap : context.accountMap);
+	}
+	
+	public void getAccountData(String name, Sheet sheet, int rowY, SheetLayout layout, AccountStore map) {
 
-		Map<String, ArrayList<double[]>> map;		
-		if (isProjection) 
-			map = gProjectedAccountMap;
-		else 
-			map = gAccountMap;
+		long start = context.metrics.isRowTiming() ? System.nanoTime() : 0;
 		
 		//===============
 		// Get volumeData
 		//===============a
-		String volumeRange = configHash.get(vRange);
-		String[] vRangeArray = volumeRange.split(":");
-		int startingVolumeX = sheet.getCell(vRangeArray[0]).getColumn();		
-		int endingVolumeX = sheet.getCell(vRangeArray[1]).getColumn();
-		double[] volumeData = getVolumeDataPerAccount(sheet, startingVolumeX, endingVolumeX, rowY);
+		double[] volumeData = getVolumeDataPerAccount(sheet, layout.volumes.startX, layout.volumes.endX, rowY);
 
 		//===============				
 		// Get gross margins
 		//===============
-		String marginRange = configHash.get(mRange);
-		String[] mRangeArray = marginRange.split(":");
-		int startingMarginX = sheet.getCell(mRangeArray[0]).getColumn();		
-		int endingMarginX = sheet.getCell(mRangeArray[1]).getColumn();
-		double[] marginData = getMarginDataPerAccount(sheet, startingMarginX, endingMarginX, rowY);
+		double[] marginData = getMarginDataPerAccount(sheet, layout.margins.startX, layout.margins.endX, rowY);
+		
+		if (start != 0) 
+			context.metrics.histogram(Metrics.ROW_PARSE_NANOS).record(System.nanoTime() - start);
+		
+		addAccountData(map, name, volumeData, marginData);
+	}
+	
+	/*
+	 * Accumulate one row's volumes and margins into the global (or projected) accountMap
+	 */
+	public void addAccountData(String name, double[] volumeData, double[] marginData, boolean isProjection) {
+		addAccountData(isProjection ? context.projectedAccountMap : context.accountMap, name, volumeData, marginData);
+	}
+	
+	public void addAccountData(AccountStore map, String name, double[] volumeData, double[] marginData) {
 				
 		// Check to see if account name is already in the map
-		if (map.containsKey(name)) {
-			
-			ArrayList<double[]> list = map.get(name);
-			
-			if (list == null) {
-				
-				list = new ArrayList<double[]>();
-				list.add(0, volumeData);
-				list.add(1, marginData);
-				
-			} else {	
-				
-				double[] oldVolumeData = (double[])list.get(0);
-				double[] newVolumeData = addData(oldVolumeData, volumeData);				
-				double[] oldMarginData = (double[])list.get(1);
-				double[] newMarginData = addData(oldMarginData, marginData);
-				list.set(0, newVolumeData);
-				list.set(1, newMarginData);				
-			}
+		int symbol = map.getSymbols().intern(name);
+		int entity = map.indexOfSymbol(symbol);
+		if (entity >= 0) {
 			
-			map.put(name, list);			
+			map.accumulate(entity, volumeData, marginData);
 			
 		} else {
 
-			System.out.println("Account Map w/ new AccountName: " + name);
-			
-			// Create an array list 
-			ArrayList<double[]> list = new ArrayList<double[]>();
-			list.add(0, volumeData);
-			list.add(1, marginData);
+			if (Log.isEnabled(Log.Level.DEBUG)) 
+				Log.debug("Account Map w/ new AccountName: " + name);
 			
-			map.put(name, list);	
+			map.put(symbol, volumeData, marginData);	
 		}
 	}
 	
 	public void printWarehouses() {
 		
-		String dataText = "";
+		double[] data = context.warehouseMap.getData();
 		
-		// Print warehouses
-		for (Map.Entry<String, Map<String, ArrayList<double[]>>> masterEntry : gWarehouseMap.entrySet()) {			
+		try {
 			
-			dataText += masterEntry.getKey() + " :\n";
+			LineWriter out = openDump(warehousesPath);
+			StringBuilder line = out.line();
 			
-			// Print accounts
-			Map<String, ArrayList<double[]>> accountMap = masterEntry.getValue();
-
-			for (Map.Entry<String, ArrayList<double[]>> accountEntry : accountMap.entrySet()) {
+			try {
 				
-				String accountName = accountEntry.getKey();				
-				dataText += "\t" + accountName;	
-				
-				ArrayList<double[]> list = accountEntry.getValue();
-								
-				// print volumes
-				double[] volumes = list.get(0);
-				for (int i=0; i<volumes.length; i++) {
-					dataText += "\t" + volumes[i];				
+				// Print warehouses
+				for (int warehouse=0; warehouse<context.warehouseMap.getWarehouseCount(); warehouse++) {			
+					
+					line.append(context.warehouseMap.getWarehouseName(warehouse)).append(" :");
+					endDumpLine(out);
+					
+					// Print accounts
+					for (int slot=0; slot<context.warehouseMap.getSlotCount(warehouse); slot++) {
+						
+						int entity = context.warehouseMap.getEntity(warehouse, slot);
+						if (!context.warehouseMap.isLive(entity)) 
+							continue;
+						
+						line.append('\t').append(context.warehouseMap.getAccountName(entity));	
+										
+						// print volumes
+						int volumes = context.warehouseMap.offset(entity, ColumnarStore.VOLUME);
+						for (int i=0; i<context.warehouseMap.getVolumeMonths(); i++) {
+							line.append('\t').append(data[volumes+i]);				
+						}
+						
+						// print gross margins
+						int margins = context.warehouseMap.offset(entity, ColumnarStore.MARGIN);
+						for (int i=0; i<context.warehouseMap.getMarginMonths(); i++) {
+							line.append('\t').append(data[margins+i]);				
+						}
+						endDumpLine(out);
+					}					
 				}
 				
-				// print gross margins
-				double[] margins = list.get(1);
-				for (int i=0; i<margins.length; i++) {
-					dataText += "\t" + margins[i];				
-				}
-				dataText += "\n";
-			}					
+			} finally {
+				out.close();
+			}
+			
+		} catch (IOException e) {
+			Log.error("Error: " + e.getMessage());
 		}
-				
-		System.out.println(dataText);
-		
-		writeFile(warehousesPath, dataText);
-		
 	}
 	
 	public void printAccounts(account_type accountType) {
 		
-		String dataText = "";
-
 		String path = projAccountPath;
-		Map<String, ArrayList<double[]>> map = gProjectedAccountMap;
+		AccountStore map = context.projectedAccountMap;
 				
 		if (accountType==account_type.HISTORY_ACCOUNTS) {
 			path = histAccountPath;
-			map = gAccountMap;
+			map = context.accountMap;
 		}		
 		
-		// Print volumes
-		for (Map.Entry<String, ArrayList<double[]>> masterEntry : map.entrySet()) {			
+		double[] data = map.getData();
+		
+		try {
 			
-			dataText += masterEntry.getKey() + " :";
+			LineWriter out = openDump(path);
+			StringBuilder line = out.line();
 			
-			// Print volumes
-			ArrayList<double[]> list = masterEntry.getValue();
-			double[] volumes = (double[])list.get(0);		
-			for (int i=0; i<volumes.length; i++) {
-				dataText += "\t" + volumes[i];				
-			}
-
-			double[] margins = (double[])list.get(1);
-			for (int i=0; i<margins.length; i++) {
-				dataText += "\t" + margins[i];				
-			}
-						
-			dataText += "\n";
-		}
+			try {
 				
-		System.out.println(dataText);
-		System.out.println("TOTAL ACCOUNTS: " + map.size());	
+				// Print volumes
+				for (int entity=0; entity<map.size(); entity++) {			
+					
+					line.append(map.getName(entity)).append(" :");
+					
+					// Print volumes
+					int volumes = map.offset(entity, ColumnarStore.VOLUME);		
+					for (int i=0; i<map.getVolumeMonths(); i++) {
+						line.append('\t').append(data[volumes+i]);				
+					}
+		
+					int margins = map.offset(entity, ColumnarStore.MARGIN);
+					for (int i=0; i<map.getMarginMonths(); i++) {
+						line.append('\t').append(data[margins+i]);				
+					}
+					
+					endDumpLine(out);
+				}
 				
-		writeFile(path, dataText);
+			} finally {
+				out.close();
+			}
+			
+		} catch (IOException e) {
+			Log.error("Error: " + e.getMessage());
+		}
+		
+		Log.info("TOTAL ACCOUNTS: " + map.size());	
+	}
+	
+	/*
+	 * Dumps are written as they are iterated rather than built up as one String. With 
+	 * DUMP_GZIP=true in config.txt they are gzip compressed, as <path>.gz.
+	 */
+	private LineWriter openDump(String path) throws IOException {
+		
+		boolean gzip = context.isEnabled(strDUMP_GZIP);
+		return new LineWriter(new File(gzip ? path + ".gz" : path), gzip);
+	}
+	
+	/*
+	 * Dump lines are also echoed to the log at DEBUG
+	 */
+	private void endDumpLine(LineWriter out) throws IOException {
+		
+		if (Log.isEnabled(Log.Level.DEBUG)) 
+			Log.debug(out.line().toString());
+		
+		out.endLine();
 	}
 	
 	public double[] addData(double[] oldArray, double[] newArray) {
@@ -623,12 +1626,7 @@ public class BudgetAnalysis implements Constants {
 		int i = 0;
 		for (int index=start; index<=end; index++) {
 			
-			String marginData = sanitizeString(sheet.getCell(index, y).getContents());
-			if (marginData.isEmpty() == false) {
-				marginArray[i] = Double.parseDouble(marginData);
-			} else {
-				marginArray[i] = 0;
-			}
+			marginArray[i] = getCellValue(sheet.getCell(index, y));
 			
 			//System.out.println("Margin Data: " + marginArray[i]);
 			
@@ -646,14 +1644,7 @@ public class BudgetAnalysis implements Constants {
 		int i = 0;
 		for (int index=start; index<=end; index++) {
 			
-			String volumeData = sanitizeString(sheet.getCell(index, y).getContents());
-			
-			if (volumeData.isEmpty() == false) {
-								
-				volumeArray[i] = Double.parseDouble(volumeData);
-			} else {
-				volumeArray[i] = 0;
-			}
+			volumeArray[i] = getCellValue(sheet.getCell(index, y));
 			
 			//System.out.println("Volume Data: " + volumeArray[i]);
 			
@@ -662,6 +1653,57 @@ public class BudgetAnalysis implements Constants {
 		
 		return volumeArray;
 	}
+	
+	/*
+	 * Numeric cells hand back their double directly; only text cells are parsed, and then 
+	 * without building the formatted and sanitized Strings in between
+	 */
+	public double getCellValue(Cell cell) {
+		
+		double value;
+		CellType type = cell.getType();
+		
+		if (type == CellType.NUMBER || type == CellType.NUMBER_FORMULA) {
+			value = ((NumberCell) cell).getValue();
+		} else if (type == CellType.EMPTY) {
+			value = 0;
+		} else {
+			value = AmountParser.parse(cell.getContents());
+		}
+		
+		if (verifyCellParsing) 
+			verifyCellValue(cell.getRow(), cell.getColumn(), cell.getContents(), value);
+		
+		return value;
+	}
+	
+	/*
+	 * VERIFY_CELL_PARSING=true: run the legacy sanitizeString + parseDouble path next to the 
+	 * fast one and report every cell where they disagree
+	 */
+	public void verifyCellValue(int y, int x, String contents, double value) {
+		
+		String where = CellReferenceHelper.getCellReference(x, y);
+		
+		try {
+			
+			String data = sanitizeString(contents);
+			double legacy = data.isEmpty() ? 0 : Double.parseDouble(data);
+			
+			if (Double.compare(legacy, value) != 0) {
+				cellParseMismatches.incrementAndGet();
+				Log.warn("Cell parse mismatch at " + where + " \"" + contents + "\": " + value + " != legacy " + legacy);
+			}
+			
+		} catch (NumberFormatException e) {
+			cellParseMismatches.incrementAndGet();
+			Log.warn("Cell parse mismatch at " + where + " \"" + contents + "\": " + value + ", legacy failed: " + e.getMessage());
+		}
+	}
+	
+	public int getCellParseMismatches() {
+		return cellParseMismatches.get();
+	}
  	
 	public String sanitizeString(String str) {
 		
@@ -676,7 +1718,8 @@ public class BudgetAnalysis implements Constants {
 	
 	public void writeFile(String path, String text) {
 				
-		System.out.println("text = " + text);
+		if (Log.isEnabled(Log.Level.DEBUG)) 
+			Log.debug("text = " + text);
 		
 		try {
 			
@@ -695,22 +1738,25 @@ public class BudgetAnalysis implements Constants {
 			out.close();
 			
 		} catch (Exception e){//Catch exception if any
-			System.err.println("Error: " + e.getMessage());
+			Log.error("Error: " + e.getMessage());
 		}		
 	}
 	
 	public String[] getLabels(Sheet sheet, String range) {
 		
-		String[] retVal;
-		String strRange = configHash.get(range);
-		String[] rangeArray = strRange.split(":");
+		// Streaming reads keep no Sheet around, only the label rows they saw
+		if (sheet == null && context.labelCache.containsKey(range)) {
+			return context.labelCache.get(range);
+		}
 		
-		Cell cellStart = sheet.getCell(rangeArray[0]);
-		Cell cellEnd = sheet.getCell(rangeArray[1]);
+		String[] retVal;
+		SheetLayout.Range labelRange = context.getHistoryLayout().getRange(range);
+		if (labelRange == null) 
+			labelRange = context.getProjectionLayout().getRange(range);
 		
-		int y = cellStart.getRow();
-		int startX = cellStart.getColumn();
-		int endX = cellEnd.getColumn();
+		int y = labelRange.startY;
+		int startX = labelRange.startX;
+		int endX = labelRange.endX;
 		
 		ArrayList<String> list = new ArrayList<String>();
 		retVal = new String[endX-startX+1];
@@ -731,18 +1777,86 @@ public class BudgetAnalysis implements Constants {
 		long start = System.currentTimeMillis();
 		
 		BudgetAnalysis analysis = new BudgetAnalysis();
+		long total = analysis.getContext().getMetrics().start();
 
-		// First let's load config
+		// First let's load config. The log level is the process' own, so it is taken from 
+		// this config here rather than by every analysis that loads one.
 		analysis.loadConfig();
-		analysis.setInputFiles(configHash.get("HIST_DATA_FILE_NAME"), configHash.get("PROJ_DATA_FILE_NAME"));
-		analysis.read();
+		Log.setLevel(analysis.getContext().getConfig(strLOG_LEVEL));
+		analysis.setInputFiles(analysis.getContext().getConfig("HIST_DATA_FILE_NAME"), analysis.getContext().getConfig("PROJ_DATA_FILE_NAME"));
+		
+		// A planner's subset of warehouses and months, when one is configured
+		ProjectionQuery query = analysis.getConfiguredQuery();
+		if (query != null) {
+			try {
+				analysis.setQuery(query);
+			} catch (BiffException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		String serverPort = analysis.getContext().getConfig(strSERVER_PORT);
+		String[] scenarioFiles = analysis.getScenarioFiles();
+		
+		if (serverPort != null && !serverPort.trim().isEmpty()) {
+			
+			// Keep the history warm and project uploaded workbooks until the JVM is stopped
+			String threads = analysis.getContext().getConfig(strSERVER_THREADS);
+			try {
+				new ProjectionServer(analysis, Integer.parseInt(serverPort.trim()), 
+						threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads.trim())).start();
+			} catch (BiffException e) {
+				e.printStackTrace();
+			}
+			return;
+			
+		} else if (scenarioFiles.length > 0) {
+			
+			// One history, many projections: each gets its own PROJECTED_/MISSING_ACCOUNTS_<name>.xls
+			analysis.readHistory();
+			
+			ScenarioBatch batch = new ScenarioBatch(analysis, analysis.getScenarioParallelism());
+			for (String scenarioFile : scenarioFiles) {
+				batch.add(analysis.getInputFile(scenarioFile));
+			}
+			batch.run(outputDataPath, missingDataPath);
+			
+		} else if (analysis.getAggregationBudget() > 0) {
+			
+			// History and projection totals too large for the heap spill to disk
+			try {
+				new BoundedRun(analysis, analysis.getAggregationBudget()).run(outputDataPath, missingDataPath);
+			} catch (BiffException e) {
+				e.printStackTrace();
+			}
+			
+		} else if (analysis.getContext().isEnabled(strPIPELINE)) {
+			
+			// Parse, convert and write overlapping instead of one after the other
+			try {
+				new Pipeline(analysis, analysis.getPipelineQueueCapacity()).run(outputDataPath, missingDataPath);
+			} catch (BiffException e) {
+				e.printStackTrace();
+			}
+			
+			analysis.export(analysis.getWarehouseMap(), outputDataPath);
+			
+		} else {
+			
+			analysis.read();
+			
+			WriteExcel write = new WriteExcel(analysis);
+			write.setOutputFiles(outputDataPath, missingDataPath);
+			write.write();
+			write.writeMissingData();
+			
+			analysis.export(analysis.getWarehouseMap(), outputDataPath);
+		}
 		
-		WriteExcel write = new WriteExcel(analysis);
-		write.setOutputFiles(outputDataPath, missingDataPath);
-		write.write();
-		write.writeMissingData();
+		analysis.getContext().getMetrics().stop("total", total);
+		analysis.writeMetrics();
 		
-		System.out.println("This reports takes " + (System.currentTimeMillis()-start)/1000F + " sec to generate!");
+		Log.info("This reports takes " + (System.currentTimeMillis()-start)/1000F + " sec to generate!");
 		
 	}
 
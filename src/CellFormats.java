@@ -0,0 +1,79 @@
+import jxl.format.UnderlineStyle;
+import jxl.write.WritableCellFormat;
+import jxl.write.WritableFont;
+import jxl.write.WriteException;
+
+/*
+ * The cell styles of every workbook we write, defined once for the process.
+ *
+ * StreamingWorkbookWriter turns them into fixed FONT/XF records, so a style there is just
+ * an index. A jxl WritableCellFormat, on the other hand, takes its XF index from the first
+ * workbook it is added to and writes broken files if it is reused in another one, so jxl
+ * sheets get their own set from newJxlFormats(), built once per workbook rather than once
+ * per cell or per call.
+ */
+public class CellFormats {
+
+	public static final int PLAIN = 0;
+	public static final int CAPTION = 1;
+
+	private static final CellFormats[] STYLES = {
+		new CellFormats("Times New Roman", 12, false, false),
+		new CellFormats("Times New Roman", 12, true, true)
+	};
+
+	private final String fontName;
+	private final int points;
+	private final boolean bold;
+	private final boolean underline;
+
+	private CellFormats(String fontName, int points, boolean bold, boolean underline) {
+		this.fontName = fontName;
+		this.points = points;
+		this.bold = bold;
+		this.underline = underline;
+	}
+
+	public static int getCount() {
+		return STYLES.length;
+	}
+
+	public static CellFormats get(int style) {
+		return STYLES[style];
+	}
+
+	public String getFontName() {
+		return fontName;
+	}
+
+	public int getPoints() {
+		return points;
+	}
+
+	public boolean isBold() {
+		return bold;
+	}
+
+	public boolean isUnderline() {
+		return underline;
+	}
+
+	/*
+	 * One WritableCellFormat per style, for a single jxl workbook
+	 */
+	public static WritableCellFormat[] newJxlFormats() throws WriteException {
+
+		WritableCellFormat[] formats = new WritableCellFormat[STYLES.length];
+		for (int i=0; i<STYLES.length; i++) {
+
+			CellFormats style = STYLES[i];
+			WritableFont font = new WritableFont(WritableFont.createFont(style.fontName), style.points,
+					style.bold ? WritableFont.BOLD : WritableFont.NO_BOLD, false,
+					style.underline ? UnderlineStyle.SINGLE : UnderlineStyle.NO_UNDERLINE);
+
+			formats[i] = new WritableCellFormat(font);
+			formats[i].setWrap(false);
+		}
+		return formats;
+	}
+}
@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Compact binary export laid out by column, so a loader can pull a single month without
+ * touching the rest. Rows are the live accounts, warehouse by warehouse in slot order.
+ * Everything is big-endian, and strings are an int byte length followed by UTF-8, as in
+ * HistoryCache:
+ *
+ *   int     MAGIC ("BAPX")
+ *   int     VERSION
+ *   int     volumeMonths, int marginMonths
+ *   int     warehouses, int rows
+ *   schema  volumeMonths volume labels, marginMonths margin labels
+ *           (string warehouse, int rows) per warehouse
+ *           string account per row
+ *   data    volumeMonths + marginMonths columns of rows doubles each, volumes first
+ *
+ * The columns are written straight from the warehouseMap, one pass over the store per
+ * month.
+ */
+public class ColumnarExporter extends ProjectionExporter {
+
+	public static final int MAGIC = 0x42415058;
+	public static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private FileChannel channel;
+	private ByteBuffer buffer;
+
+	public String getExtension() {
+		return "bin";
+	}
+
+	public void export(WarehouseStore warehouseMap, String[] volumeLabels, String[] marginLabels, File file) throws IOException {
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+
+			channel = out.getChannel();
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+			int volumeMonths = warehouseMap.getVolumeMonths();
+			int marginMonths = warehouseMap.getMarginMonths();
+			int rows = countRows(warehouseMap);
+
+			ensure(24);
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putInt(volumeMonths).putInt(marginMonths);
+			buffer.putInt(warehouseMap.getWarehouseCount()).putInt(rows);
+
+			// Label rows may be shorter or longer than the data; pad or cut them to the schema
+			for (int i=0; i<volumeMonths; i++) {
+				putString(i < volumeLabels.length ? volumeLabels[i] : "");
+			}
+			for (int i=0; i<marginMonths; i++) {
+				putString(i < marginLabels.length ? marginLabels[i] : "");
+			}
+
+			for (int w=0; w<warehouseMap.getWarehouseCount(); w++) {
+
+				int live = 0;
+				for (int slot=0; slot<warehouseMap.getSlotCount(w); slot++) {
+					if (warehouseMap.isLive(warehouseMap.getEntity(w, slot)))
+						live++;
+				}
+
+				putString(warehouseMap.getWarehouseName(w));
+				ensure(4);
+				buffer.putInt(live);
+			}
+
+			for (int w=0; w<warehouseMap.getWarehouseCount(); w++) {
+				for (int slot=0; slot<warehouseMap.getSlotCount(w); slot++) {
+					int entity = warehouseMap.getEntity(w, slot);
+					if (warehouseMap.isLive(entity))
+						putString(warehouseMap.getAccountName(entity));
+				}
+			}
+
+			double[] data = warehouseMap.getData();
+			for (int month=0; month<volumeMonths + marginMonths; month++) {
+				for (int w=0; w<warehouseMap.getWarehouseCount(); w++) {
+					for (int slot=0; slot<warehouseMap.getSlotCount(w); slot++) {
+
+						int entity = warehouseMap.getEntity(w, slot);
+						if (!warehouseMap.isLive(entity))
+							continue;
+
+						ensure(8);
+						buffer.putDouble(data[warehouseMap.offset(entity, ColumnarStore.VOLUME) + month]);
+					}
+				}
+			}
+
+			drain();
+
+		} finally {
+			channel = null;
+			buffer = null;
+			out.close();
+		}
+	}
+
+	private void putString(String value) throws IOException {
+
+		byte[] bytes = value.getBytes("UTF-8");
+		ensure(4);
+		buffer.putInt(bytes.length);
+
+		int offset = 0;
+		while (offset < bytes.length) {
+			ensure(1);
+			int n = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, n);
+			offset += n;
+		}
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			drain();
+	}
+
+	private void drain() throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
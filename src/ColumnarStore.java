@@ -0,0 +1,133 @@
+/*
+ * Contiguous primitive storage for volumes and gross margins.
+ *
+ * Every entity (an account, or an account within a warehouse) is a dense int index, and
+ * all of its numbers live in one shared double[] laid out [entity][metric][month]:
+ *
+ *   | entity 0: volumes ... margins ... | entity 1: volumes ... margins ... | ...
+ *
+ * so there are no per-account ArrayLists or double[]s, and a pass over the store is a
+ * straight walk through a single array.
+ */
+public class ColumnarStore {
+
+	public static final int VOLUME = 0;
+	public static final int MARGIN = 1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int volumeMonths = -1;
+	private int marginMonths = -1;
+	private int stride = 0;
+
+	protected double[] data = new double[0];
+	protected int size = 0;
+	protected int capacity = 0;
+
+	public int size() {
+		return size;
+	}
+
+	public int getVolumeMonths() {
+		return Math.max(volumeMonths, 0);
+	}
+
+	public int getMarginMonths() {
+		return Math.max(marginMonths, 0);
+	}
+
+	public int getMonths(int metric) {
+		return metric == VOLUME ? getVolumeMonths() : getMarginMonths();
+	}
+
+	/*
+	 * The backing block itself; use offset() to find an entity's months in it
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	public int offset(int entity, int metric) {
+		return entity * stride + (metric == VOLUME ? 0 : volumeMonths);
+	}
+
+	/*
+	 * Copy of one entity's months for the given metric
+	 */
+	public double[] get(int entity, int metric) {
+
+		double[] retVal = new double[getMonths(metric)];
+		System.arraycopy(data, offset(entity, metric), retVal, 0, retVal.length);
+		return retVal;
+	}
+
+	public void set(int entity, double[] volumes, double[] margins) {
+		System.arraycopy(volumes, 0, data, offset(entity, VOLUME), volumeMonths);
+		System.arraycopy(margins, 0, data, offset(entity, MARGIN), marginMonths);
+	}
+
+	public void accumulate(int entity, double[] volumes, double[] margins) {
+
+		int v = offset(entity, VOLUME);
+		for (int i=0; i<volumeMonths; i++) {
+			data[v+i] += volumes[i];
+		}
+
+		int m = offset(entity, MARGIN);
+		for (int i=0; i<marginMonths; i++) {
+			data[m+i] += margins[i];
+		}
+	}
+
+	/*
+	 * Append a zero-filled entity. The first one fixes the month widths for the whole store.
+	 */
+	protected int newEntity(double[] volumes, double[] margins) {
+
+		if (volumeMonths < 0) {
+			volumeMonths = volumes.length;
+			marginMonths = margins.length;
+			stride = volumeMonths + marginMonths;
+		} else if (volumes.length != volumeMonths || margins.length != marginMonths) {
+			throw new IllegalArgumentException("Expected " + volumeMonths + " volume and " + marginMonths
+					+ " margin months, got " + volumes.length + " and " + margins.length);
+		}
+
+		if (size == capacity) {
+			capacity = Math.max(INITIAL_CAPACITY, capacity * 2);
+			double[] newData = new double[capacity * stride];
+			System.arraycopy(data, 0, newData, 0, size * stride);
+			data = newData;
+			grow(capacity);
+		}
+
+		return size++;
+	}
+
+	/*
+	 * Adopt a block read back from a snapshot as is, without copying it entity by entity
+	 */
+	protected void restore(int volumeMonths, int marginMonths, int size, double[] data) {
+
+		if (size == 0) 
+			return;
+		
+		if (data.length != size * (volumeMonths + marginMonths)) {
+			throw new IllegalArgumentException("Block of " + data.length + " does not hold " + size + " entities");
+		}
+
+		this.volumeMonths = volumeMonths;
+		this.marginMonths = marginMonths;
+		this.stride = volumeMonths + marginMonths;
+		this.data = data;
+		this.size = size;
+		this.capacity = size;
+		grow(size);
+	}
+
+	/*
+	 * Hook for subclasses keeping per-entity arrays alongside the block
+	 */
+	protected void grow(int capacity) {
+	}
+}
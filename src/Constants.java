@@ -14,6 +14,29 @@ public interface Constants {
  	public static final String strPROJ_VOLUME_DATA_RANGE = "PROJ_VOLUME_DATA_RANGE";
 	public static final String strPROJ_GROSS_MARGIN_LABEL_RANGE = "PROJ_GROSS_MARGIN_LABEL_RANGE";
 	public static final String strPROJ_GROSS_MARGIN_RANGE = "PROJ_GROSS_MARGIN_RANGE";
+	
+	public static final String strSTREAMING_READ = "STREAMING_READ";
+	public static final String strSTREAMING_WRITE = "STREAMING_WRITE";
+	public static final String strEXPORT_FORMATS = "EXPORT_FORMATS";
+	public static final String strHIST_DATA_FILES = "HIST_DATA_FILES";
+	public static final String strINGEST_THREADS = "INGEST_THREADS";
+	public static final String strCONVERT_THREADS = "CONVERT_THREADS";
+	public static final String strVERIFY_CELL_PARSING = "VERIFY_CELL_PARSING";
+	public static final String strINCREMENTAL = "INCREMENTAL";
+	public static final String strHISTORY_CACHE_FILE = "HISTORY_CACHE_FILE";
+	public static final String strSCENARIO_FILES = "SCENARIO_FILES";
+	public static final String strSCENARIO_THREADS = "SCENARIO_THREADS";
+	public static final String strSERVER_PORT = "SERVER_PORT";
+	public static final String strSERVER_THREADS = "SERVER_THREADS";
+	public static final String strMETRICS_FILE = "METRICS_FILE";
+	public static final String strLOG_LEVEL = "LOG_LEVEL";
+	public static final String strDUMP_GZIP = "DUMP_GZIP";
+	public static final String strPIPELINE = "PIPELINE";
+	public static final String strPIPELINE_QUEUE = "PIPELINE_QUEUE";
+	public static final String strQUERY_WAREHOUSES = "QUERY_WAREHOUSES";
+	public static final String strQUERY_MONTHS = "QUERY_MONTHS";
+	public static final String strAGGREGATION_MEMORY_MB = "AGGREGATION_MEMORY_MB";
+	public static final String strSPILL_DIRECTORY = "SPILL_DIRECTORY";
 
 	
 }
@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * One line per live account, warehouse by warehouse in slot order, with the same columns
+ * as the Projections sheet:
+ *
+ *   Warehouse,Acct#Name,<volume labels>,<margin labels>
+ *   WH1,1001#Acct,0.25,...
+ *
+ * Numbers are written with Double.toString, so they read back exactly. Fields holding the
+ * delimiter, a quote or a line break are quoted. Lines go out through a LineWriter.
+ */
+public class DelimitedExporter extends ProjectionExporter {
+
+	private char delimiter;
+	private String extension;
+
+	public DelimitedExporter(char delimiter, String extension) {
+		this.delimiter = delimiter;
+		this.extension = extension;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public void export(WarehouseStore warehouseMap, String[] volumeLabels, String[] marginLabels, File file) throws IOException {
+
+		LineWriter out = new LineWriter(file, false);
+		try {
+
+			StringBuilder line = out.line();
+
+			line.append(quote("Warehouse")).append(delimiter).append(quote("Acct#Name"));
+			for (String label : volumeLabels) {
+				line.append(delimiter).append(quote(label));
+			}
+			for (String label : marginLabels) {
+				line.append(delimiter).append(quote(label));
+			}
+			out.endLine();
+
+			double[] data = warehouseMap.getData();
+			int months = warehouseMap.getVolumeMonths() + warehouseMap.getMarginMonths();
+
+			for (int w=0; w<warehouseMap.getWarehouseCount(); w++) {
+
+				String warehouseName = quote(warehouseMap.getWarehouseName(w));
+
+				for (int slot=0; slot<warehouseMap.getSlotCount(w); slot++) {
+
+					int entity = warehouseMap.getEntity(w, slot);
+					if (!warehouseMap.isLive(entity))
+						continue;
+
+					line.append(warehouseName).append(delimiter).append(quote(warehouseMap.getAccountName(entity)));
+
+					// Volumes, then the margins that follow them in the block
+					int offset = warehouseMap.offset(entity, ColumnarStore.VOLUME);
+					for (int i=0; i<months; i++) {
+						line.append(delimiter).append(data[offset+i]);
+					}
+					out.endLine();
+				}
+			}
+
+		} finally {
+			out.close();
+		}
+	}
+
+	private String quote(String field) {
+
+		boolean quoted = false;
+		for (int i=0; i<field.length() && !quoted; i++) {
+			char c = field.charAt(i);
+			quoted = (c == delimiter || c == '"' || c == '\n' || c == '\r');
+		}
+		if (!quoted)
+			return field;
+
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+}
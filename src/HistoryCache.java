@@ -0,0 +1,393 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Keeps the history side of an analysis (global accountMap, warehouseMap already converted
+ * to percentages, label rows and any accounts found missing on the way) on disk, keyed by
+ * a hash of the history workbook's content and the config ranges used to read it. As long
+ * as neither changes, a new projection only needs the TO_PROJECTION_WAREHOUSE pass.
+ *
+ * The snapshot is a flat binary file that is mapped with FileChannel.map, so the store
+ * blocks come back as bulk copies rather than being parsed value by value:
+ *
+ *   int     MAGIC ("BAHS")
+ *   int     VERSION
+ *   byte[64] key (hex SHA-256)
+ *   long    payload length
+ *   long    CRC32 of the payload
+ *   payload:
+ *     labels      int count, then (string range, int n, n strings)
+ *     missing     int count, then (string warehouse, string account)
+ *     accounts    int volumeMonths, int marginMonths, int n, n names, n*stride doubles
+ *     warehouses  int volumeMonths, int marginMonths, int warehouses,
+ *                 then (string name, int accounts, account names), then every double
+ *
+ * Strings are an int byte length followed by UTF-8. A snapshot with another magic, version,
+ * key, length or checksum is ignored and rebuilt.
+ */
+public class HistoryCache implements Constants {
+
+	private static final int MAGIC = 0x42414853;
+	private static final int VERSION = 1;
+	private static final int KEY_LENGTH = 64;
+	private static final int HEADER_LENGTH = 4 + 4 + KEY_LENGTH + 8 + 8;
+
+	// config.txt entries that shape the history result
+	public static final String[] HISTORY_CONFIG_KEYS = {
+		strWAREHOUSE_DATA_STARTING_COORDINATE,
+		strACCOUNT_NAME_RANGE,
+		strVOLUME_LABEL_RANGE,
+		strVOLUME_DATA_RANGE,
+		strGROSS_MARGIN_LABEL_RANGE,
+		strGROSS_MARGIN_RANGE
+	};
+
+	public static class Entry {
+
+		String key;
+		AccountStore accounts;
+		WarehouseStore warehouses;
+		HashMap<String, String[]> labels;
+		ArrayList<String[]> missing;
+
+		Entry(String key, AccountStore accounts, WarehouseStore warehouses, Map<String, String[]> labels, ArrayList<String[]> missing) {
+			this.key = key;
+			this.accounts = accounts;
+			this.warehouses = warehouses;
+			this.labels = new HashMap<String, String[]>(labels);
+			this.missing = new ArrayList<String[]>(missing);
+		}
+	}
+
+	private File file;
+
+	public HistoryCache(File file) {
+		this.file = file;
+	}
+
+	public static String computeKey(File history, Map<String, String> config) throws IOException {
+		return computeKey(Collections.singletonList(history), config);
+	}
+
+	/*
+	 * SHA-256 over the history workbooks' bytes followed by the history config ranges, and
+	 * the sheet list when the history comes from HIST_DATA_FILES, and the query if there is one
+	 */
+	public static String computeKey(List<File> histories, Map<String, String> config) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		byte[] buffer = new byte[64 * 1024];
+		for (File history : histories) {
+			InputStream in = new BufferedInputStream(new FileInputStream(history));
+			try {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		for (String key : HISTORY_CONFIG_KEYS) {
+			digest.update((key + "=" + config.get(key) + "\n").getBytes("UTF-8"));
+		}
+		for (String key : new String[] {strHIST_DATA_FILES, strQUERY_WAREHOUSES, strQUERY_MONTHS}) {
+			if (config.get(key) != null) {
+				digest.update((key + "=" + config.get(key) + "\n").getBytes("UTF-8"));
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", Integer.valueOf(b & 0xFF)));
+		}
+		return hex.toString();
+	}
+
+	/*
+	 * The cached entry for this key, or null when there is none, it was built from
+	 * different history, or it does not pass the version and checksum checks
+	 */
+	public Entry load(String key) {
+		return load(key, new SymbolTable());
+	}
+
+	/*
+	 * As load(key), with the entry's account names interned in the given table
+	 */
+	public Entry load(String key, SymbolTable symbols) {
+
+		if (!file.exists())
+			return null;
+
+		try {
+
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+
+				FileChannel channel = raf.getChannel();
+				if (channel.size() < HEADER_LENGTH)
+					return null;
+
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+				if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+					return null;
+
+				byte[] storedKey = new byte[KEY_LENGTH];
+				buffer.get(storedKey);
+				if (!key.equals(new String(storedKey, "US-ASCII")))
+					return null;
+
+				long payloadLength = buffer.getLong();
+				long checksum = buffer.getLong();
+				if (payloadLength != channel.size() - HEADER_LENGTH || checksum != checksum(buffer))
+					return null;
+
+				return readPayload(key, buffer, symbols);
+
+			} finally {
+				raf.close();
+			}
+
+		} catch (Exception e) {
+			Log.error("HistoryCache Error: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Written to a temp file of its own next to the snapshot and renamed over it, so 
+	 * analyses saving at the same time never write into each other's file
+	 */
+	public void save(Entry entry) {
+
+		File tmp = null;
+
+		try {
+
+			File directory = file.getAbsoluteFile().getParentFile();
+			tmp = File.createTempFile(file.getName(), ".tmp", directory);
+
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+
+				FileChannel channel = raf.getChannel();
+				channel.truncate(0);
+				channel.position(HEADER_LENGTH);
+
+				CRC32 crc = new CRC32();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024));
+				writePayload(entry, out);
+				out.flush();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.put(entry.key.getBytes("US-ASCII"), 0, KEY_LENGTH);
+				header.putLong(channel.size() - HEADER_LENGTH);
+				header.putLong(crc.getValue());
+				header.flip();
+				channel.write(header, 0);
+
+			} finally {
+				raf.close();
+			}
+
+			// Replaces the snapshot in one step where the platform allows it; Windows will 
+			// not rename over an existing file
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("Could not move " + tmp + " to " + file);
+			}
+
+		} catch (IOException e) {
+			Log.error("HistoryCache Error: " + e.getMessage());
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	//===============
+	// Payload
+	//===============
+	private void writePayload(Entry entry, DataOutputStream out) throws IOException {
+
+		out.writeInt(entry.labels.size());
+		for (Map.Entry<String, String[]> label : entry.labels.entrySet()) {
+			writeString(out, label.getKey());
+			out.writeInt(label.getValue().length);
+			for (String value : label.getValue()) {
+				writeString(out, value);
+			}
+		}
+
+		out.writeInt(entry.missing.size());
+		for (String[] account : entry.missing) {
+			writeString(out, account[0]);
+			writeString(out, account[1]);
+		}
+
+		AccountStore accounts = entry.accounts;
+		out.writeInt(accounts.getVolumeMonths());
+		out.writeInt(accounts.getMarginMonths());
+		out.writeInt(accounts.size());
+		for (int i=0; i<accounts.size(); i++) {
+			writeString(out, accounts.getName(i));
+		}
+		double[] data = accounts.getData();
+		int length = accounts.size() * (accounts.getVolumeMonths() + accounts.getMarginMonths());
+		for (int i=0; i<length; i++) {
+			out.writeDouble(data[i]);
+		}
+
+		// Only live accounts are written, warehouse by warehouse, so the block reads back compacted
+		WarehouseStore warehouses = entry.warehouses;
+		out.writeInt(warehouses.getVolumeMonths());
+		out.writeInt(warehouses.getMarginMonths());
+		out.writeInt(warehouses.getWarehouseCount());
+		for (int w=0; w<warehouses.getWarehouseCount(); w++) {
+
+			writeString(out, warehouses.getWarehouseName(w));
+
+			int live = 0;
+			for (int slot=0; slot<warehouses.getSlotCount(w); slot++) {
+				if (!warehouses.isRemoved(warehouses.getEntity(w, slot)))
+					live++;
+			}
+
+			out.writeInt(live);
+			for (int slot=0; slot<warehouses.getSlotCount(w); slot++) {
+				int entity = warehouses.getEntity(w, slot);
+				if (!warehouses.isRemoved(entity))
+					writeString(out, warehouses.getAccountName(entity));
+			}
+		}
+
+		data = warehouses.getData();
+		int stride = warehouses.getVolumeMonths() + warehouses.getMarginMonths();
+		for (int w=0; w<warehouses.getWarehouseCount(); w++) {
+			for (int slot=0; slot<warehouses.getSlotCount(w); slot++) {
+				int entity = warehouses.getEntity(w, slot);
+				if (warehouses.isRemoved(entity))
+					continue;
+				int offset = warehouses.offset(entity, ColumnarStore.VOLUME);
+				for (int i=0; i<stride; i++) {
+					out.writeDouble(data[offset+i]);
+				}
+			}
+		}
+	}
+
+	private Entry readPayload(String key, ByteBuffer buffer, SymbolTable symbols) throws IOException {
+
+		HashMap<String, String[]> labels = new HashMap<String, String[]>();
+		int labelCount = buffer.getInt();
+		for (int i=0; i<labelCount; i++) {
+			String range = readString(buffer);
+			String[] values = new String[buffer.getInt()];
+			for (int j=0; j<values.length; j++) {
+				values[j] = readString(buffer);
+			}
+			labels.put(range, values);
+		}
+
+		ArrayList<String[]> missing = new ArrayList<String[]>();
+		int missingCount = buffer.getInt();
+		for (int i=0; i<missingCount; i++) {
+			missing.add(new String[] {readString(buffer), readString(buffer)});
+		}
+
+		int volumeMonths = buffer.getInt();
+		int marginMonths = buffer.getInt();
+		String[] names = new String[buffer.getInt()];
+		for (int i=0; i<names.length; i++) {
+			names[i] = readString(buffer);
+		}
+		AccountStore accounts = AccountStore.restore(volumeMonths, marginMonths, names,
+				readDoubles(buffer, names.length * (volumeMonths + marginMonths)), symbols);
+
+		volumeMonths = buffer.getInt();
+		marginMonths = buffer.getInt();
+		String[] warehouseNames = new String[buffer.getInt()];
+		int[] accountCounts = new int[warehouseNames.length];
+		ArrayList<String> accountNames = new ArrayList<String>();
+		for (int w=0; w<warehouseNames.length; w++) {
+			warehouseNames[w] = readString(buffer);
+			accountCounts[w] = buffer.getInt();
+			for (int i=0; i<accountCounts[w]; i++) {
+				accountNames.add(readString(buffer));
+			}
+		}
+		WarehouseStore warehouses = WarehouseStore.restore(volumeMonths, marginMonths, warehouseNames, accountCounts,
+				accountNames.toArray(new String[accountNames.size()]),
+				readDoubles(buffer, accountNames.size() * (volumeMonths + marginMonths)), symbols);
+
+		return new Entry(key, accounts, warehouses, labels, missing);
+	}
+
+	private static double[] readDoubles(ByteBuffer buffer, int count) {
+
+		double[] values = new double[count];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + count * 8);
+		return values;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/*
+	 * CRC32 of everything from the buffer's position on, leaving the position untouched
+	 */
+	private static long checksum(ByteBuffer buffer) {
+
+		CRC32 crc = new CRC32();
+		ByteBuffer payload = buffer.duplicate();
+		byte[] chunk = new byte[64 * 1024];
+
+		while (payload.hasRemaining()) {
+			int n = Math.min(chunk.length, payload.remaining());
+			payload.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+}
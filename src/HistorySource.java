@@ -0,0 +1,44 @@
+import java.io.File;
+
+/*
+ * One history sheet to ingest. HIST_DATA_FILES entries are either "file", for every sheet
+ * of the workbook, or "file#n" for its sheet n (0 based).
+ */
+public class HistorySource {
+
+	public static final int ALL_SHEETS = -1;
+
+	private File file;
+	private int sheet;
+
+	public HistorySource(File file, int sheet) {
+		this.file = file;
+		this.sheet = sheet;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getSheet() {
+		return sheet;
+	}
+
+	/*
+	 * "east.xls#1" -> (east.xls, 1), "east.xls" -> (east.xls, ALL_SHEETS); the file name is
+	 * returned as given, for the caller to resolve
+	 */
+	public static String parseName(String entry) {
+		int hash = entry.lastIndexOf('#');
+		return (hash < 0 ? entry : entry.substring(0, hash)).trim();
+	}
+
+	public static int parseSheet(String entry) {
+		int hash = entry.lastIndexOf('#');
+		return hash < 0 ? ALL_SHEETS : Integer.parseInt(entry.substring(hash + 1).trim());
+	}
+
+	public String toString() {
+		return file.getName() + "#" + sheet;
+	}
+}
@@ -0,0 +1,112 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Text output one line at a time, for dumps and exports that can be far larger than
+ * anything worth holding as one String. The caller fills line() and calls endLine(); the
+ * line is encoded as UTF-8 into one reused buffer, which is drained to the file channel
+ * whenever it fills up. Memory stays at the buffer plus the longest line, however many
+ * lines are written.
+ *
+ * With gzip the same bytes go through a GZIPOutputStream instead of straight to the file.
+ */
+public class LineWriter {
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private OutputStream out;
+	private WritableByteChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private StringBuilder line = new StringBuilder(256);
+
+	public LineWriter(File file, boolean gzip) throws IOException {
+
+		FileOutputStream fileOut = new FileOutputStream(file);
+		if (gzip) {
+			out = new GZIPOutputStream(fileOut, 64 * 1024);
+			channel = Channels.newChannel(out);
+		} else {
+			out = fileOut;
+			channel = fileOut.getChannel();
+		}
+	}
+
+	/*
+	 * The line being built; emptied by endLine()
+	 */
+	public StringBuilder line() {
+		return line;
+	}
+
+	public void endLine() throws IOException {
+
+		line.append('\n');
+
+		// Lines are nearly always ASCII, which goes into the buffer as is
+		int length = line.length();
+		boolean ascii = true;
+		for (int i=0; i<length && ascii; i++) {
+			ascii = line.charAt(i) < 0x80;
+		}
+
+		if (ascii && length <= buffer.capacity()) {
+			if (length > buffer.remaining()) {
+				drain();
+			}
+			for (int i=0; i<length; i++) {
+				buffer.put((byte) line.charAt(i));
+			}
+			line.setLength(0);
+			return;
+		}
+
+		byte[] bytes = line.toString().getBytes("UTF-8");
+		line.setLength(0);
+
+		drain();
+		if (bytes.length > buffer.remaining()) {
+			ByteBuffer wide = ByteBuffer.wrap(bytes);
+			while (wide.hasRemaining()) {
+				channel.write(wide);
+			}
+			return;
+		}
+		buffer.put(bytes);
+	}
+
+	/*
+	 * Write out what is buffered, including a line not yet ended, and close the file
+	 */
+	public void close() throws IOException {
+
+		try {
+			if (line.length() > 0) {
+				byte[] bytes = line.toString().getBytes("UTF-8");
+				line.setLength(0);
+				drain();
+				ByteBuffer rest = ByteBuffer.wrap(bytes);
+				while (rest.hasRemaining()) {
+					channel.write(rest);
+				}
+			}
+			drain();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void drain() throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,279 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The analysis' diagnostics, written to the console by a background thread so the reading
+ * and converting threads never wait on System.out.
+ *
+ * Callers drop messages into a fixed ring of slots (a bounded multi-producer queue in the
+ * style of Vyukov's: each slot carries a sequence number, producers claim a position with
+ * one CAS and the single writer thread hands the slot back once printed). Nothing takes a
+ * lock on the way in; only when the ring is full does a caller yield until the writer has
+ * caught up, so no message is lost. The writer parks while the ring is empty, and the
+ * first message published after that unparks it, so an idle JVM has no idle wakeups.
+ *
+ * Messages below the level (DEBUG, INFO, WARN, ERROR or OFF; INFO by default) return
+ * straight away. The level is one for the whole JVM: main() sets it from LOG_LEVEL in
+ * config.txt, and BudgetAnalysis.loadConfig() leaves it alone, so the analyses of a
+ * ScenarioBatch, a ProjectionServer or any other caller running several in one process
+ * cannot change each other's logging. Such callers set it with setLevel() themselves. Callers that build a message per row check
+ * isEnabled() first so a disabled message costs no concatenation either. warnLimited()
+ * prints the first few of a repeated warning and counts the rest.
+ *
+ * INFO and DEBUG go to System.out, WARN and ERROR to System.err, in the order they were
+ * logged. Whatever is still queued is printed before the JVM exits.
+ */
+public final class Log {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+
+	// warnLimited() prints this many of each warning
+	static final int REPEAT_LIMIT = 5;
+
+	private static volatile Level level = Level.INFO;
+
+	private static final String[] messages = new String[CAPACITY];
+	private static final Level[] levels = new Level[CAPACITY];
+	private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+
+	// Next position to claim, and next position the writer prints
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong head = new AtomicLong();
+
+	private static final ConcurrentMap<String, AtomicLong> repeats = new ConcurrentHashMap<String, AtomicLong>();
+
+	private static volatile Thread writer;
+
+	// Set by the writer before it parks with nothing to print; a producer that sees it
+	// after publishing wakes the writer up
+	private static volatile boolean writerIdle = false;
+
+	static {
+		for (int i=0; i<CAPACITY; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	private Log() {
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	/*
+	 * LOG_LEVEL value from config.txt; anything unrecognised leaves the level alone
+	 */
+	public static void setLevel(String name) {
+
+		if (name == null)
+			return;
+
+		try {
+			level = Level.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			warn("Unknown LOG_LEVEL " + name + ", staying at " + level);
+		}
+	}
+
+	public static boolean isEnabled(Level messageLevel) {
+		return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	/*
+	 * A warning that may repeat many times a run: only the first REPEAT_LIMIT of each key
+	 * are printed, and the total is reported when the JVM exits
+	 */
+	public static void warnLimited(String key, String message) {
+
+		if (!isEnabled(Level.WARN))
+			return;
+
+		AtomicLong count = repeats.get(key);
+		if (count == null) {
+			repeats.putIfAbsent(key, new AtomicLong());
+			count = repeats.get(key);
+		}
+
+		long n = count.incrementAndGet();
+		if (n < REPEAT_LIMIT)
+			warn(message);
+		else if (n == REPEAT_LIMIT)
+			warn(message + " (further repeats suppressed)");
+	}
+
+	public static void log(Level messageLevel, String message) {
+
+		if (!isEnabled(messageLevel))
+			return;
+
+		if (writer == null)
+			startWriter();
+
+		long position;
+		int index;
+		while (true) {
+
+			position = tail.get();
+			index = (int) (position & MASK);
+			long sequence = sequences.get(index);
+
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				// Full: let the writer catch up
+				LockSupport.unpark(writer);
+				Thread.yield();
+			}
+		}
+
+		messages[index] = message;
+		levels[index] = messageLevel;
+		sequences.set(index, position + 1);
+
+		if (writerIdle)
+			LockSupport.unpark(writer);
+	}
+
+	/*
+	 * Wait until everything logged so far has been printed
+	 */
+	public static void flush() {
+
+		if (Thread.currentThread() == writer)
+			return;
+
+		long target = tail.get();
+		while (head.get() < target && writer != null && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100000L);
+		}
+	}
+
+	//===============
+	// Writer thread
+	//===============
+	private static synchronized void startWriter() {
+
+		if (writer != null)
+			return;
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+
+					if (drain() > 0)
+						continue;
+
+					// Flag first, then look again: a message published before the flag was
+					// visible is seen here, any later one unparks the writer
+					writerIdle = true;
+					if (!hasQueued())
+						LockSupport.park();
+					writerIdle = false;
+				}
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				for (Map.Entry<String, AtomicLong> repeat : repeats.entrySet()) {
+					if (repeat.getValue().get() > REPEAT_LIMIT)
+						warn(repeat.getKey() + " repeated " + repeat.getValue().get() + " times");
+				}
+				flush();
+			}
+		}, "log-flush"));
+	}
+
+	/*
+	 * Whether the next position to print has been published
+	 */
+	private static boolean hasQueued() {
+
+		long position = head.get();
+		return sequences.get((int) (position & MASK)) == position + 1;
+	}
+
+	/*
+	 * Print what is queued, up to a batch, keeping System.out and System.err lines in order.
+	 * Returns the number of messages printed.
+	 */
+	private static int drain() {
+
+		StringBuilder batch = new StringBuilder();
+		boolean batchIsError = false;
+		long position = head.get();
+		int printed = 0;
+
+		while (printed < 1024) {
+
+			int index = (int) (position & MASK);
+			if (sequences.get(index) != position + 1)
+				break;
+
+			String message = messages[index];
+			boolean isError = levels[index].compareTo(Level.WARN) >= 0;
+			messages[index] = null;
+			levels[index] = null;
+			sequences.set(index, position + CAPACITY);
+
+			if (isError != batchIsError && batch.length() > 0) {
+				print(batch, batchIsError);
+			}
+			batchIsError = isError;
+			batch.append(message).append('\n');
+
+			position++;
+			printed++;
+		}
+
+		if (batch.length() > 0)
+			print(batch, batchIsError);
+
+		// Only now does flush() see these as printed
+		head.set(position);
+		return printed;
+	}
+
+	private static void print(StringBuilder batch, boolean isError) {
+
+		PrintStream stream = isError ? System.err : System.out;
+		stream.print(batch);
+		stream.flush();
+		batch.setLength(0);
+	}
+}
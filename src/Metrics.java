@@ -0,0 +1,251 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Timings and counts of one analysis, cheap enough to leave on in production runs:
+ *
+ *   stages      wall time per pipeline step (loadConfig, read, getAccounts, ...), as
+ *               count / total / max, so steps that run per scenario or per sheet add up
+ *   counters    rows scanned, and the accounts, warehouses and missing accounts found;
+ *               a row counts as scanned when it has an account name (account rows) or a
+ *               warehouse or account name (warehouse rows), so blank rows in the ranges
+ *               count on neither reader and both give the same numbers
+ *   histograms  per-row parse latency, only recorded with row timing on, since it costs
+ *               two System.nanoTime() calls a row
+ *
+ * Everything is safe to update from several threads. toJson() takes a snapshot; with
+ * METRICS_FILE in config.txt, main() writes it there at the end of the run, and the
+ * projection server serves it at GET /metrics.
+ */
+public class Metrics {
+
+	public static final String ACCOUNT_ROWS = "accountRowsScanned";
+	public static final String WAREHOUSE_ROWS = "warehouseRowsScanned";
+	public static final String ACCOUNTS = "accounts";
+	public static final String PROJECTED_ACCOUNTS = "projectedAccounts";
+	public static final String WAREHOUSES = "warehouses";
+	public static final String MISSING_ACCOUNTS = "missingAccounts";
+	public static final String ROW_PARSE_NANOS = "rowParseNanos";
+
+	/*
+	 * Wall time of one stage over all the times it ran
+	 */
+	static class Timer {
+
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			}
+		}
+	}
+
+	/*
+	 * Power-of-two buckets: bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0.
+	 * Percentiles are reported as the upper bound of the bucket they fall in, so they are
+	 * within a factor of two, which is plenty to tell a slow row from a normal one.
+	 */
+	public static class Histogram {
+
+		private static final int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+
+			if (value < 0)
+				value = 0;
+
+			buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+
+			long current;
+			while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long percentile(double p) {
+
+			long total = count.get();
+			if (total == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i=0; i<BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+			}
+			return max.get();
+		}
+	}
+
+	private final ConcurrentMap<String, Timer> stages = new ConcurrentHashMap<String, Timer>();
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	private volatile boolean rowTiming = false;
+
+	public boolean isRowTiming() {
+		return rowTiming;
+	}
+
+	public void setRowTiming(boolean rowTiming) {
+		this.rowTiming = rowTiming;
+	}
+
+	//===============
+	// Stages
+	//===============
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/*
+	 * long start = metrics.start(); ... metrics.stop("read", start);
+	 */
+	public void stop(String stage, long start) {
+
+		Timer timer = stages.get(stage);
+		if (timer == null) {
+			stages.putIfAbsent(stage, new Timer());
+			timer = stages.get(stage);
+		}
+		timer.record(System.nanoTime() - start);
+	}
+
+	//===============
+	// Counters
+	//===============
+	/*
+	 * The counter itself, for callers that bump it once per row
+	 */
+	public AtomicLong counter(String name) {
+
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	public void add(String name, long delta) {
+		counter(name).addAndGet(delta);
+	}
+
+	public void set(String name, long value) {
+		counter(name).set(value);
+	}
+
+	public long get(String name) {
+		AtomicLong counter = counters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	//===============
+	// Histograms
+	//===============
+	public Histogram histogram(String name) {
+
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	//===============
+	// Export
+	//===============
+	/*
+	 * {"stages":{"read":{"count":1,"totalMs":..,"maxMs":..},..},
+	 *  "counters":{"accounts":..,..},
+	 *  "histograms":{"rowParseNanos":{"count":..,"mean":..,"p50":..,"p90":..,"p99":..,"max":..}}}
+	 */
+	public String toJson() {
+
+		StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+
+		String separator = "";
+		for (Map.Entry<String, Timer> stage : new TreeMap<String, Timer>(stages).entrySet()) {
+
+			Timer timer = stage.getValue();
+			json.append(separator).append("\n    ").append(quote(stage.getKey())).append(": {")
+				.append("\"count\": ").append(timer.count.get())
+				.append(", \"totalMs\": ").append(timer.totalNanos.get() / 1e6)
+				.append(", \"maxMs\": ").append(timer.maxNanos.get() / 1e6)
+				.append("}");
+			separator = ",";
+		}
+
+		json.append("\n  },\n  \"counters\": {");
+
+		separator = "";
+		for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+			json.append(separator).append("\n    ").append(quote(counter.getKey())).append(": ").append(counter.getValue().get());
+			separator = ",";
+		}
+
+		json.append("\n  },\n  \"histograms\": {");
+
+		separator = "";
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+
+			Histogram histogram = entry.getValue();
+			long count = histogram.count.get();
+			json.append(separator).append("\n    ").append(quote(entry.getKey())).append(": {")
+				.append("\"count\": ").append(count)
+				.append(", \"mean\": ").append(count == 0 ? 0 : histogram.sum.get() / count)
+				.append(", \"p50\": ").append(histogram.percentile(0.50))
+				.append(", \"p90\": ").append(histogram.percentile(0.90))
+				.append(", \"p99\": ").append(histogram.percentile(0.99))
+				.append(", \"max\": ").append(histogram.max.get())
+				.append("}");
+			separator = ",";
+		}
+
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	public void writeJson(File file) throws IOException {
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(toJson());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
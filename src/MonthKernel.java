@@ -0,0 +1,36 @@
+/*
+ * Whole-account month math for convertWarehouseAccounts.
+ *
+ * Volumes and margins of an entity sit next to each other in a ColumnarStore block, and the 
+ * global and warehouse stores share the same layout, so one call covers every month of an 
+ * account. The type check is made once per call instead of once per month, and the loops 
+ * are plain counted loops with a select for the zero months, which is the shape HotSpot's 
+ * superword pass turns into SIMD code.
+ */
+public final class MonthKernel {
+
+	private MonthKernel() {
+	}
+
+	/*
+	 * local[i] = local[i] / global[i], or 0 where global[i] is 0
+	 */
+	public static void divide(double[] local, int localOffset, double[] global, int globalOffset, int length) {
+		
+		for (int i=0; i<length; i++) {
+			double g = global[globalOffset+i];
+			local[localOffset+i] = (g != 0) ? local[localOffset+i] / g : 0;
+		}
+	}
+	
+	/*
+	 * local[i] = local[i] * global[i], or 0 where global[i] is 0
+	 */
+	public static void multiply(double[] local, int localOffset, double[] global, int globalOffset, int length) {
+		
+		for (int i=0; i<length; i++) {
+			double g = global[globalOffset+i];
+			local[localOffset+i] = (g != 0) ? local[localOffset+i] * g : 0;
+		}
+	}
+}
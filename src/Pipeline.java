@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jxl.read.biff.BiffException;
+import jxl.write.WriteException;
+
+/*
+ * read() followed by write() and writeMissingData(), as three stages that overlap:
+ *
+ *   parse    the history (through TO_PERCENTAGE_WAREHOUSE) and the projection workbook,
+ *            on a task each, side by side
+ *   convert  TO_PROJECTION_WAREHOUSE one warehouse at a time, handing each finished
+ *            warehouse to the writer
+ *   write    the projected accounts workbook, a warehouse at a time as they arrive, then
+ *            the missing accounts workbook
+ *
+ * A warehouse can only be converted once both account totals are complete, so convert
+ * starts when parse is done; from then on the converter and the writer run concurrently.
+ * Finished warehouses pass through a bounded queue: a converter that gets ahead of the
+ * writer blocks until the writer catches up, so at most PIPELINE_QUEUE warehouses are
+ * waiting at any time. The output is the same as that of the sequential run.
+ *
+ * Each stage records how long it was busy and how long it was blocked on the queue, as
+ * Metrics counters pipeline.<stage>.busyNanos / .blockedNanos, and the run logs every
+ * stage's utilization: busy time over the pipeline's wall time times the stage's threads.
+ */
+public class Pipeline {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	private static final Integer END = Integer.valueOf(-1);
+
+	/*
+	 * Busy and blocked time of one stage, over all of its threads
+	 */
+	static class Stage {
+
+		final String name;
+		final int threads;
+		final AtomicLong busy = new AtomicLong();
+		final AtomicLong blocked = new AtomicLong();
+
+		Stage(String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+		}
+
+		double getUtilization(long wall) {
+			return wall <= 0 ? 0 : (double) busy.get() / ((double) wall * threads);
+		}
+	}
+
+	private BudgetAnalysis analysis;
+	private BlockingQueue<Integer> converted;
+
+	private Stage parse = new Stage("parse", 2);
+	private Stage convert = new Stage("convert", 1);
+	private Stage write = new Stage("write", 1);
+
+	public Pipeline(BudgetAnalysis analysis, int capacity) {
+		this.analysis = analysis;
+		this.converted = new ArrayBlockingQueue<Integer>(Math.max(capacity, 1));
+	}
+
+	/*
+	 * Read the analysis' input files and write the projected and missing accounts workbooks
+	 * to the given paths
+	 */
+	public void run(String outputPath, String missingPath) throws IOException, BiffException, WriteException {
+
+		final AnalysisContext context = analysis.getContext();
+		final boolean streaming = analysis.isStreamingRead();
+		final File historyInputWorkbook = analysis.getInputFile(analysis.getHistoryInputFile());
+		final File projectionInputWorkbook = analysis.getInputFile(analysis.getProjectionInputFile());
+
+		analysis.clear();
+
+		long start = context.getMetrics().start();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+
+		try {
+
+			// Stage 1: both workbooks at once; neither task touches what the other fills in
+			Future<Void> history = executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					long started = System.nanoTime();
+					analysis.loadHistory(historyInputWorkbook, streaming);
+					parse.busy.addAndGet(System.nanoTime() - started);
+					return null;
+				}
+			});
+			Future<Void> projection = executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					long started = System.nanoTime();
+					analysis.readProjection(projectionInputWorkbook, streaming);
+					parse.busy.addAndGet(System.nanoTime() - started);
+					return null;
+				}
+			});
+			history.get();
+			projection.get();
+
+			// Stage 3 needs the history's labels, so it starts once they are there
+			final WriteExcel writer = new WriteExcel(analysis);
+			writer.setOutputFiles(outputPath, missingPath);
+			writer.setWarehouseFeed(new WriteExcel.WarehouseFeed() {
+				public int next() {
+					return take();
+				}
+			});
+			Future<Void> written = executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					long started = System.nanoTime();
+					writer.write();
+					writer.writeMissingData();
+					write.busy.addAndGet(System.nanoTime() - started - write.blocked.get());
+					return null;
+				}
+			});
+
+			// Stage 2 on this thread
+			convert(written);
+			written.get();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof BiffException)
+				throw (BiffException) cause;
+			if (cause instanceof WriteException)
+				throw (WriteException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		context.getMetrics().stop("pipeline", start);
+		analysis.countResults();
+		report(System.nanoTime() - start);
+	}
+
+	/*
+	 * Project every warehouse and hand it to the writer. convertWarehouse() masks the
+	 * warehouse's missing accounts as it finds them, so each warehouse is final when it is
+	 * queued.
+	 */
+	private void convert(Future<Void> written) throws InterruptedException, ExecutionException {
+
+		AnalysisContext context = analysis.getContext();
+		WarehouseStore warehouseMap = context.warehouseMap;
+
+		for (int warehouse=0; warehouse<warehouseMap.getWarehouseCount(); warehouse++) {
+
+			long started = System.nanoTime();
+			analysis.convertWarehouse(BudgetAnalysis.warehouse_type.TO_PROJECTION_WAREHOUSE,
+					warehouseMap, context.projectedAccountMap, warehouse, context.missingAccountList);
+			convert.busy.addAndGet(System.nanoTime() - started);
+
+			hand(Integer.valueOf(warehouse), written);
+		}
+
+		hand(END, written);
+	}
+
+	/*
+	 * Queue a finished warehouse, waiting while the queue is full unless the writer has
+	 * stopped, in which case its failure is thrown from here
+	 */
+	private void hand(Integer warehouse, Future<Void> written) throws InterruptedException, ExecutionException {
+
+		long started = System.nanoTime();
+		while (!converted.offer(warehouse, 100, TimeUnit.MILLISECONDS)) {
+			if (written.isDone()) {
+				written.get();
+				throw new IllegalStateException("Writer stopped before the last warehouse");
+			}
+		}
+		convert.blocked.addAndGet(System.nanoTime() - started);
+	}
+
+	/*
+	 * The writer's next warehouse, waiting for the converter if need be
+	 */
+	private int take() {
+
+		long started = System.nanoTime();
+		try {
+			int warehouse = converted.take().intValue();
+			write.blocked.addAndGet(System.nanoTime() - started);
+			return warehouse;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Pipeline writer interrupted", e);
+		}
+	}
+
+	private void report(long wall) {
+
+		Metrics metrics = analysis.getContext().getMetrics();
+		StringBuilder line = new StringBuilder("Pipeline utilization:");
+
+		for (Stage stage : new Stage[] {parse, convert, write}) {
+
+			metrics.set("pipeline." + stage.name + ".busyNanos", stage.busy.get());
+			metrics.set("pipeline." + stage.name + ".blockedNanos", stage.blocked.get());
+
+			line.append(' ').append(stage.name).append(' ')
+					.append(Math.round(stage.getUtilization(wall) * 100)).append("% busy");
+			if (stage.blocked.get() > 0)
+				line.append(" (").append(stage.blocked.get() / 1000000).append(" ms blocked)");
+			line.append(stage == write ? "" : ",");
+		}
+
+		Log.info(line.toString());
+	}
+}
@@ -0,0 +1,51 @@
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Writes a projected warehouseMap in a format other than .xls, for consumers that do not
+ * want to parse Excel or need more than the 65,536 rows of a BIFF8 sheet. Exporters
+ * read straight from the store; nothing is copied into an intermediate table.
+ *
+ * EXPORT_FORMATS in config.txt lists the ones to run next to WriteExcel, by name:
+ *
+ *   csv        DelimitedExporter, comma separated
+ *   tsv        DelimitedExporter, tab separated
+ *   columnar   ColumnarExporter
+ */
+public abstract class ProjectionExporter {
+
+	public static ProjectionExporter forName(String name) {
+
+		String format = name.trim().toLowerCase();
+		if (format.equals("csv"))
+			return new DelimitedExporter(',', "csv");
+		if (format.equals("tsv"))
+			return new DelimitedExporter('\t', "tsv");
+		if (format.equals("columnar"))
+			return new ColumnarExporter();
+
+		throw new IllegalArgumentException("Unknown export format " + name);
+	}
+
+	/*
+	 * File name extension, without the dot
+	 */
+	public abstract String getExtension();
+
+	public abstract void export(WarehouseStore warehouseMap, String[] volumeLabels, String[] marginLabels, File file) throws IOException;
+
+	/*
+	 * Live accounts of the store, over all warehouses
+	 */
+	static int countRows(WarehouseStore warehouseMap) {
+
+		int rows = 0;
+		for (int w=0; w<warehouseMap.getWarehouseCount(); w++) {
+			for (int slot=0; slot<warehouseMap.getSlotCount(w); slot++) {
+				if (warehouseMap.isLive(warehouseMap.getEntity(w, slot)))
+					rows++;
+			}
+		}
+		return rows;
+	}
+}
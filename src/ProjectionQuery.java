@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Some warehouses and some months of the projection, such as "Q3 for the West warehouses":
+ *
+ *   QUERY_WAREHOUSES=West*,Central 4     names; a trailing * takes every name starting so
+ *   QUERY_MONTHS=Jul:Sep                 one month or a from:to range, as volume labels
+ *                                        of the history or as 1 based positions ("7:9")
+ *
+ * An analysis given a query (BudgetAnalysis.setQuery()) narrows its sheet layouts to the
+ * months, so only those columns are parsed, converted and written, and skips the rows of
+ * the other warehouses before parsing their numbers. Margins take the same positions as
+ * the volumes. Global account totals are still read in full, as every warehouse's
+ * percentages depend on them.
+ *
+ * Warehouse names are looked up in a hash set, with the few prefixes checked after it, and
+ * month labels through a label -> column map built from the history's label row.
+ */
+public class ProjectionQuery {
+
+	private Set<String> names = new HashSet<String>();
+	private List<String> prefixes = new ArrayList<String>();
+	private boolean allWarehouses;
+
+	private String fromMonth;
+	private String toMonth;
+
+	/*
+	 * Either may be null or blank for every warehouse, or every month
+	 */
+	public ProjectionQuery(String warehouses, String months) {
+
+		allWarehouses = (warehouses == null || warehouses.trim().isEmpty());
+		if (!allWarehouses) {
+			for (String name : warehouses.split(",")) {
+				name = name.trim();
+				if (name.endsWith("*"))
+					prefixes.add(name.substring(0, name.length() - 1));
+				else if (!name.isEmpty())
+					names.add(name);
+			}
+		}
+
+		if (months != null && !months.trim().isEmpty()) {
+			String[] range = months.split(":");
+			if (range.length > 2)
+				throw new IllegalArgumentException("QUERY_MONTHS=" + months + " is not a month or a from:to range");
+			fromMonth = range[0].trim();
+			toMonth = (range.length == 2) ? range[1].trim() : fromMonth;
+		}
+	}
+
+	public boolean isAllWarehouses() {
+		return allWarehouses;
+	}
+
+	public boolean isAllMonths() {
+		return fromMonth == null;
+	}
+
+	public boolean selectsWarehouse(String name) {
+
+		if (allWarehouses)
+			return true;
+		if (name == null)
+			return false;
+		if (names.contains(name))
+			return true;
+
+		for (int i=0; i<prefixes.size(); i++) {
+			if (name.startsWith(prefixes.get(i)))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Whether resolveMonths() needs the history's volume labels, i.e. the months are not
+	 * both given as positions
+	 */
+	public boolean needsLabels() {
+		return !isAllMonths() && (position(fromMonth) < 0 || position(toMonth) < 0);
+	}
+
+	/*
+	 * {from, to}, 0 based and inclusive, out of the given number of months. labels may be
+	 * null when needsLabels() is false.
+	 */
+	public int[] resolveMonths(String[] labels, int months) {
+
+		if (isAllMonths())
+			return new int[] {0, months - 1};
+
+		Map<String, Integer> columns = new HashMap<String, Integer>();
+		if (labels != null) {
+			for (int i=labels.length-1; i>=0; i--) {
+				if (labels[i] != null)
+					columns.put(labels[i].trim().toLowerCase(), Integer.valueOf(i));
+			}
+		}
+
+		int from = resolve(fromMonth, columns);
+		int to = resolve(toMonth, columns);
+
+		if (from > to)
+			throw new IllegalArgumentException("QUERY_MONTHS " + fromMonth + ":" + toMonth + " ends before it starts");
+		if (to >= months)
+			throw new IllegalArgumentException("QUERY_MONTHS " + toMonth + " is past the " + months + " months of the history");
+
+		return new int[] {from, to};
+	}
+
+	private static int resolve(String month, Map<String, Integer> columns) {
+
+		int position = position(month);
+		if (position >= 0)
+			return position;
+
+		Integer column = columns.get(month.toLowerCase());
+		if (column == null)
+			throw new IllegalArgumentException("QUERY_MONTHS: no history volume label \"" + month + "\"");
+		return column.intValue();
+	}
+
+	/*
+	 * "7" -> 6; -1 for anything that is not a positive number
+	 */
+	private static int position(String month) {
+
+		for (int i=0; i<month.length(); i++) {
+			if (month.charAt(i) < '0' || month.charAt(i) > '9')
+				return -1;
+		}
+		return (month.isEmpty() || month.length() > 6) ? -1 : Integer.parseInt(month) - 1;
+	}
+}
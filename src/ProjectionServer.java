@@ -0,0 +1,263 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jxl.read.biff.BiffException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Serves projections over HTTP from a history that is read once and kept in memory, so
+ * a report costs one projection pass instead of a JVM start, jxl class loading and the
+ * whole history workbook.
+ *
+ *   POST /projection           body: projection .xls   ->  projected accounts .xls
+ *   POST /projection/missing   body: projection .xls   ->  missing accounts .xls
+ *   POST /history/reload       re-read the history workbook, with the config the server
+ *                              started with
+ *   GET  /health               "OK" once the history is loaded, 503 before that and
+ *                              after a reload that failed
+ *   GET  /metrics              Metrics of the current history, as JSON
+ *
+ * Every request projects its own copy of the percentage warehouseMap (see
+ * BudgetAnalysis.applyProjection()), so requests run side by side on the pool without
+ * locking. A reload builds a new analysis next to the old one and swaps it in; requests
+ * already running finish against the history they started with. A reload that cannot read
+ * the history answers 500 and leaves the old analysis serving.
+ */
+public class ProjectionServer {
+
+	private static final String XLS_CONTENT_TYPE = "application/vnd.ms-excel";
+
+	private volatile BudgetAnalysis analysis;
+	
+	// False until start() has read the history, and again after a failed reload
+	private volatile boolean healthy = false;
+	private int port;
+	private int threads;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/*
+	 * The analysis needs its config loaded and input files set; its history is read by start()
+	 */
+	public ProjectionServer(BudgetAnalysis analysis, int port, int threads) {
+		this.analysis = analysis;
+		this.port = port;
+		this.threads = Math.max(threads, 1);
+	}
+
+	/*
+	 * Read the history and start serving; a history that cannot be read is thrown and 
+	 * nothing is served
+	 */
+	public void start() throws IOException, BiffException {
+
+		analysis.loadHistory();
+		healthy = true;
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/projection", new ProjectionHandler());
+		server.createContext("/history/reload", new ReloadHandler());
+		server.createContext("/health", new HealthHandler());
+		server.createContext("/metrics", new MetricsHandler());
+
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+
+		Log.info("Serving projections on port " + getPort() + " with " + threads + " threads");
+	}
+
+	public void stop() {
+
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/*
+	 * The port actually bound, which differs from the configured one when that was 0
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/*
+	 * Read the history again into a new analysis and swap it in. Only a history that was 
+	 * read in full is swapped in; on failure the current one keeps serving and /health 
+	 * reports the failure until a reload succeeds.
+	 */
+	public synchronized void reload() throws IOException, BiffException {
+
+		BudgetAnalysis current = analysis;
+		BudgetAnalysis fresh = new BudgetAnalysis(current.getContext().newRun());
+		fresh.setInputFiles(current.getHistoryInputFile(), current.getProjectionInputFile());
+		
+		try {
+			fresh.loadHistory();
+		} catch (IOException e) {
+			healthy = false;
+			throw e;
+		} catch (BiffException e) {
+			healthy = false;
+			throw e;
+		}
+
+		analysis = fresh;
+		healthy = true;
+	}
+	
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	//===============
+	// Handlers
+	//===============
+	class ProjectionHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+
+			try {
+
+				if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+					send(exchange, 405, "POST a projection workbook");
+					return;
+				}
+
+				boolean missing = exchange.getRequestURI().getPath().endsWith("/missing");
+				BudgetAnalysis current = analysis;
+
+				File upload = File.createTempFile("projection", ".xls");
+				try {
+
+					copy(exchange.getRequestBody(), upload);
+
+					ScenarioBatch.Scenario scenario;
+					try {
+						scenario = current.applyProjection(ScenarioBatch.getScenarioName(upload), upload, current.isStreamingRead());
+					} catch (BiffException e) {
+						send(exchange, 400, "Not a projection workbook: " + e);
+						return;
+					} catch (StreamingWorkbookReader.FormatException e) {
+						send(exchange, 400, "Not a projection workbook: " + e);
+						return;
+					} catch (EOFException e) {
+						send(exchange, 400, "Projection workbook is truncated: " + e);
+						return;
+					}
+					
+					// Any other IOException is the server's own and falls through to the 500 below
+
+					ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+					WriteExcel write = new WriteExcel(current, scenario.getWarehouseMap(), scenario.getMissingAccountList());
+					if (missing)
+						write.writeMissingData(out);
+					else
+						write.write(out);
+
+					exchange.getResponseHeaders().set("Content-Type", XLS_CONTENT_TYPE);
+					exchange.getResponseHeaders().set("X-Missing-Accounts", String.valueOf(scenario.getMissingAccountList().size()));
+					send(exchange, 200, out.toByteArray());
+
+				} finally {
+					upload.delete();
+				}
+
+			} catch (Exception e) {
+				Log.error("ProjectionServer Error: " + e.getMessage());
+				send(exchange, 500, String.valueOf(e.getMessage()));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	class ReloadHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+
+			try {
+
+				if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+					send(exchange, 405, "POST to reload the history");
+					return;
+				}
+
+				reload();
+				send(exchange, 200, "OK");
+
+			} catch (Exception e) {
+				Log.error("ProjectionServer reload failed, keeping the current history: " + e);
+				send(exchange, 500, "Reload failed: " + e);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	class HealthHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+
+			try {
+				if (healthy)
+					send(exchange, 200, "OK");
+				else
+					send(exchange, 503, "History not loaded");
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	class MetricsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+
+			try {
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+				send(exchange, 200, analysis.getContext().getMetrics().toJson().getBytes("UTF-8"));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String message) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		send(exchange, status, (message + "\n").getBytes("UTF-8"));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static void copy(InputStream in, File file) throws IOException {
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+import java.util.Arrays;
+
+/*
+ * Projected accounts computed on demand from the history as it was read. The eager path,
+ * convertWarehouseAccounts(), overwrites the warehouseMap first with percentages and then
+ * with projections, so the history values are gone afterwards and every warehouse is
+ * converted whether it is wanted or not. A view leaves all three stores untouched and
+ * works out one account when it is asked for:
+ *
+ *   projection = local / globalHistory * globalProjection
+ *
+ * month by month, with the same zero rules as MonthKernel, so every value equals the one
+ * the eager path writes. Each account's months are kept once computed, so asking again,
+ * or for another month slice of it, is an array copy. They are kept in chunks of
+ * CHUNK_SIZE accounts, allocated when an account in the chunk is first asked for, so a
+ * view queried for one warehouse holds that warehouse's chunks and not a copy of the
+ * whole history block.
+ *
+ * A view is meant for one thread at a time; each thread can open its own over the same
+ * stores, which are only ever read.
+ */
+public class ProjectionView {
+
+	private static final byte UNKNOWN = 0;
+	private static final byte COMPUTED = 1;
+	private static final byte MISSING = 2;
+
+	// Accounts per chunk of memo and state, a power of two
+	static final int CHUNK_SHIFT = 6;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final WarehouseStore history;
+	private final AccountStore historyAccounts;
+	private final AccountStore projectedAccounts;
+
+	private final int volumeMonths;
+	private final int marginMonths;
+	private final int stride;
+
+	// Projected months by warehouse entity, laid out like the history block within a
+	// chunk; a chunk is null until one of its accounts is asked for
+	private double[][] memo;
+	private byte[][] state;
+	private int chunks;
+
+	public ProjectionView(WarehouseStore history, AccountStore historyAccounts, AccountStore projectedAccounts) {
+
+		this.history = history;
+		this.historyAccounts = historyAccounts;
+		this.projectedAccounts = projectedAccounts;
+
+		volumeMonths = history.getVolumeMonths();
+		marginMonths = history.getMarginMonths();
+		stride = volumeMonths + marginMonths;
+
+		// Only the chunk references are sized to the history; chunks come on first touch
+		int chunkCount = (history.size() + CHUNK_MASK) >>> CHUNK_SHIFT;
+		memo = new double[chunkCount][];
+		state = new byte[chunkCount][];
+	}
+
+	/*
+	 * The warehouses and accounts the view answers for
+	 */
+	public WarehouseStore getHistory() {
+		return history;
+	}
+
+	public int getVolumeMonths() {
+		return volumeMonths;
+	}
+
+	public int getMarginMonths() {
+		return marginMonths;
+	}
+
+	/*
+	 * The account's projected volumes followed by its margins, or null when the warehouse
+	 * does not have the account or either global accountMap lacks it
+	 */
+	public double[] projection(String warehouse, String account) {
+		return projection(warehouse, account, 0, stride);
+	}
+
+	/*
+	 * Months [from, to) of the projection, counting volumes from 0 and margins from
+	 * getVolumeMonths(); null as for projection(warehouse, account)
+	 */
+	public double[] projection(String warehouse, String account, int from, int to) {
+
+		int entity = history.indexOf(history.warehouseIdOf(warehouse), account);
+		if (entity < 0)
+			return null;
+
+		return projection(entity, from, to);
+	}
+
+	public double[] projection(int entity, int from, int to) {
+
+		if (from < 0 || to > stride || from > to)
+			throw new IndexOutOfBoundsException("Months " + from + ".." + to + " of " + stride);
+
+		if (!compute(entity))
+			return null;
+
+		int offset = (entity & CHUNK_MASK) * stride;
+		return Arrays.copyOfRange(memo[entity >>> CHUNK_SHIFT], offset + from, offset + to);
+	}
+
+	/*
+	 * One month of the projection, or NaN when there is none
+	 */
+	public double projection(String warehouse, String account, int month) {
+
+		int entity = history.indexOf(history.warehouseIdOf(warehouse), account);
+		if (entity < 0 || !compute(entity))
+			return Double.NaN;
+
+		return memo[entity >>> CHUNK_SHIFT][(entity & CHUNK_MASK) * stride + month];
+	}
+
+	/*
+	 * True when either global accountMap lacks the account, which the eager path would
+	 * report as missing
+	 */
+	public boolean isMissing(int entity) {
+		return !compute(entity);
+	}
+
+	/*
+	 * How many months the view holds, computed or not, in the chunks allocated so far
+	 */
+	int getMemoizedMonths() {
+		return chunks * CHUNK_SIZE * stride;
+	}
+
+	/*
+	 * Fill in the entity's months unless that was done already; false when it is missing
+	 */
+	private boolean compute(int entity) {
+
+		int chunk = entity >>> CHUNK_SHIFT;
+		int slot = entity & CHUNK_MASK;
+
+		if (chunk >= state.length) {
+			state = Arrays.copyOf(state, chunk + 1);
+			memo = Arrays.copyOf(memo, chunk + 1);
+		}
+		if (state[chunk] == null) {
+			state[chunk] = new byte[CHUNK_SIZE];
+			memo[chunk] = new double[CHUNK_SIZE * stride];
+			chunks++;
+		}
+
+		byte[] states = state[chunk];
+		if (states[slot] != UNKNOWN)
+			return states[slot] == COMPUTED;
+
+		int historyEntity = globalEntity(historyAccounts, entity);
+		int projectedEntity = globalEntity(projectedAccounts, entity);
+		if (historyEntity < 0 || projectedEntity < 0) {
+			states[slot] = MISSING;
+			return false;
+		}
+
+		double[] months = memo[chunk];
+		int offset = slot * stride;
+		System.arraycopy(history.getData(), history.offset(entity, ColumnarStore.VOLUME), months, offset, stride);
+
+		// The same two steps as the eager passes, skipping one the way they do when the
+		// global store has other months than the history
+		if (sameMonths(historyAccounts))
+			MonthKernel.divide(months, offset, historyAccounts.getData(),
+					historyAccounts.offset(historyEntity, ColumnarStore.VOLUME), stride);
+		if (sameMonths(projectedAccounts))
+			MonthKernel.multiply(months, offset, projectedAccounts.getData(),
+					projectedAccounts.offset(projectedEntity, ColumnarStore.VOLUME), stride);
+
+		states[slot] = COMPUTED;
+		return true;
+	}
+
+	private int globalEntity(AccountStore global, int entity) {
+
+		if (global.getSymbols() == history.getSymbols())
+			return global.indexOfSymbol(history.getAccountId(entity));
+		return global.indexOf(history.getAccountName(entity));
+	}
+
+	private boolean sameMonths(AccountStore global) {
+		return global.getVolumeMonths() == volumeMonths && global.getMarginMonths() == marginMonths;
+	}
+}
@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jxl.write.WriteException;
+
+/*
+ * Runs several projection workbooks against one history. The history is read and turned
+ * into the percentage warehouseMap once, by the analysis; every scenario then works on
+ * its own copy of that map with its own projected accountMap and missing list, so the
+ * scenarios can run side by side and each writes its own pair of workbooks.
+ */
+public class ScenarioBatch {
+
+	/*
+	 * The outcome of one projection
+	 */
+	public static class Scenario {
+
+		private String name;
+		private WarehouseStore warehouseMap;
+		private AccountStore projectedAccountMap;
+		private ArrayList<String[]> missingAccountList;
+
+		Scenario(String name, WarehouseStore warehouseMap, AccountStore projectedAccountMap, ArrayList<String[]> missingAccountList) {
+			this.name = name;
+			this.warehouseMap = warehouseMap;
+			this.projectedAccountMap = projectedAccountMap;
+			this.missingAccountList = missingAccountList;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public WarehouseStore getWarehouseMap() {
+			return warehouseMap;
+		}
+
+		public AccountStore getProjectedAccountMap() {
+			return projectedAccountMap;
+		}
+
+		public ArrayList<String[]> getMissingAccountList() {
+			return missingAccountList;
+		}
+	}
+
+	private BudgetAnalysis analysis;
+	private int parallelism;
+	private List<File> projections = new ArrayList<File>();
+
+	/*
+	 * The analysis must already have its history loaded (BudgetAnalysis.readHistory())
+	 */
+	public ScenarioBatch(BudgetAnalysis analysis, int parallelism) {
+		this.analysis = analysis;
+		this.parallelism = Math.max(parallelism, 1);
+	}
+
+	public void add(File projection) {
+		projections.add(projection);
+	}
+
+	/*
+	 * Apply every projection and write PROJECTED_ACCOUNTS_<scenario>.xls (plus any
+	 * EXPORT_FORMATS) and MISSING_ACCOUNTS_<scenario>.xls next to the given output paths,
+	 * where <scenario> is the projection's file name without its extension. Scenarios come
+	 * back in the order they were added.
+	 */
+	public List<Scenario> run(final String outputPath, final String missingPath) throws IOException, WriteException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(projections.size(), 1)));
+
+		try {
+
+			List<Future<Scenario>> results = new ArrayList<Future<Scenario>>();
+			for (final File projection : projections) {
+
+				results.add(executor.submit(new Callable<Scenario>() {
+					public Scenario call() throws Exception {
+
+						long start = analysis.getContext().getMetrics().start();
+						String name = getScenarioName(projection);
+						Scenario scenario = analysis.applyProjection(name, projection, analysis.isStreamingRead());
+
+						WriteExcel write = new WriteExcel(analysis, scenario.getWarehouseMap(), scenario.getMissingAccountList());
+						write.setOutputFiles(getScenarioPath(outputPath, name), getScenarioPath(missingPath, name));
+						write.write();
+						write.writeMissingData();
+						
+						analysis.export(scenario.getWarehouseMap(), getScenarioPath(outputPath, name));
+
+						analysis.getContext().getMetrics().stop("scenario", start);
+						return scenario;
+					}
+				}));
+			}
+
+			List<Scenario> scenarios = new ArrayList<Scenario>();
+			for (Future<Scenario> result : results) {
+				scenarios.add(result.get());
+			}
+			return scenarios;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof WriteException)
+				throw (WriteException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static String getScenarioName(File projection) {
+
+		String name = projection.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/*
+	 * "/x/PROJECTED_ACCOUNTS.xls" + "q3" -> "/x/PROJECTED_ACCOUNTS_q3.xls"
+	 */
+	public static String getScenarioPath(String path, String name) {
+
+		int dot = path.lastIndexOf('.');
+		if (dot < 0 || dot < path.lastIndexOf(File.separatorChar))
+			return path + "_" + name;
+
+		return path.substring(0, dot) + "_" + name + path.substring(dot);
+	}
+}
@@ -0,0 +1,186 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Where the accounts, volumes, margins and their labels sit on a history or projection
+ * sheet, resolved once from the config.txt ranges ("C3:N98") into 0 based columns and
+ * rows. The readers take their bounds from here, so the per-row work is only cell reads.
+ *
+ * Building a layout checks every range it needs: each must be set, name one cell or two,
+ * and not run backwards.
+ */
+public class SheetLayout implements Constants {
+
+	/*
+	 * A rectangle of cells, inclusive on both ends
+	 */
+	public static class Range {
+
+		final int startX, startY, endX, endY;
+
+		Range(int startX, int startY, int endX, int endY) {
+			this.startX = startX;
+			this.startY = startY;
+			this.endX = endX;
+			this.endY = endY;
+		}
+
+		public int getWidth() {
+			return endX - startX + 1;
+		}
+	}
+
+	final Range accounts;
+	final Range volumes;
+	final Range margins;
+	final Range volumeLabels;
+	final Range marginLabels;
+
+	// First cell of the warehouse column; history sheets only, null on projections
+	final Range warehouseStart;
+
+	private Map<String, Range> ranges = new HashMap<String, Range>();
+
+	public static SheetLayout forHistory(Map<String, String> config) {
+		return new SheetLayout(config, strACCOUNT_NAME_RANGE, strVOLUME_DATA_RANGE, strGROSS_MARGIN_RANGE,
+				strVOLUME_LABEL_RANGE, strGROSS_MARGIN_LABEL_RANGE, strWAREHOUSE_DATA_STARTING_COORDINATE);
+	}
+
+	public static SheetLayout forProjection(Map<String, String> config) {
+		return new SheetLayout(config, strPROJ_ACCOUNT_NAME_RANGE, strPROJ_VOLUME_DATA_RANGE, strPROJ_GROSS_MARGIN_RANGE,
+				strPROJ_VOLUME_LABEL_RANGE, strPROJ_GROSS_MARGIN_LABEL_RANGE, null);
+	}
+
+	private SheetLayout(Map<String, String> config, String accountKey, String volumeKey, String marginKey,
+			String volumeLabelKey, String marginLabelKey, String warehouseKey) {
+
+		accounts = compile(config, accountKey);
+		volumes = compile(config, volumeKey);
+		margins = compile(config, marginKey);
+		volumeLabels = compile(config, volumeLabelKey);
+		marginLabels = compile(config, marginLabelKey);
+		warehouseStart = warehouseKey == null ? null : compile(config, warehouseKey);
+	}
+
+	/*
+	 * The same layout narrowed to months [from, to], 0 based and inclusive, of both the
+	 * volumes and the margins, with their label ranges narrowed to match
+	 */
+	public SheetLayout sliceMonths(int from, int to) {
+		return new SheetLayout(this, from, to);
+	}
+
+	private SheetLayout(SheetLayout layout, int from, int to) {
+
+		accounts = layout.accounts;
+		volumes = slice(layout.volumes, from, to);
+		margins = slice(layout.margins, from, to);
+		volumeLabels = slice(layout.volumeLabels, from, to);
+		marginLabels = slice(layout.marginLabels, from, to);
+		warehouseStart = layout.warehouseStart;
+
+		for (Map.Entry<String, Range> entry : layout.ranges.entrySet()) {
+
+			Range range = entry.getValue();
+			if (range == layout.volumes)
+				range = volumes;
+			else if (range == layout.margins)
+				range = margins;
+			else if (range == layout.volumeLabels)
+				range = volumeLabels;
+			else if (range == layout.marginLabels)
+				range = marginLabels;
+
+			ranges.put(entry.getKey(), range);
+		}
+	}
+
+	private static Range slice(Range range, int from, int to) {
+
+		if (from < 0 || to < from || to >= range.getWidth())
+			throw new IllegalArgumentException("Months " + (from + 1) + " to " + (to + 1) + " are not within the "
+					+ range.getWidth() + " columns of the range");
+
+		return new Range(range.startX + from, range.startY, range.startX + to, range.endY);
+	}
+
+	public Range getAccounts() {
+		return accounts;
+	}
+
+	public Range getVolumes() {
+		return volumes;
+	}
+
+	public Range getMargins() {
+		return margins;
+	}
+
+	public Range getVolumeLabels() {
+		return volumeLabels;
+	}
+
+	public Range getMarginLabels() {
+		return marginLabels;
+	}
+
+	public Range getWarehouseStart() {
+		return warehouseStart;
+	}
+
+	/*
+	 * The range compiled from the given config key, or null if this layout does not use it
+	 */
+	public Range getRange(String key) {
+		return ranges.get(key);
+	}
+
+	private Range compile(Map<String, String> config, String key) {
+
+		String value = config.get(key);
+		if (value == null || value.trim().isEmpty())
+			throw new IllegalArgumentException(key + " is not set in config.txt");
+
+		// A single cell, such as the warehouse starting coordinate, is a range of one
+		String[] cells = value.trim().split(":");
+		if (cells.length > 2)
+			throw new IllegalArgumentException(key + "=" + value + " is not a cell range");
+
+		int[] start = parseCell(key, value, cells[0]);
+		int[] end = cells.length == 2 ? parseCell(key, value, cells[1]) : start;
+
+		if (end[0] < start[0] || end[1] < start[1])
+			throw new IllegalArgumentException(key + "=" + value + " ends before it starts");
+
+		Range range = new Range(start[0], start[1], end[0], end[1]);
+		ranges.put(key, range);
+		return range;
+	}
+
+	/*
+	 * "AB12" -> {27, 11}
+	 */
+	private static int[] parseCell(String key, String value, String cell) {
+
+		String reference = cell.trim().toUpperCase();
+		int i = 0;
+		int column = 0;
+		while (i < reference.length() && reference.charAt(i) >= 'A' && reference.charAt(i) <= 'Z') {
+			column = column * 26 + (reference.charAt(i) - 'A' + 1);
+			i++;
+		}
+
+		int row = 0;
+		int digits = 0;
+		while (i < reference.length() && reference.charAt(i) >= '0' && reference.charAt(i) <= '9') {
+			row = row * 10 + (reference.charAt(i) - '0');
+			digits++;
+			i++;
+		}
+
+		if (column == 0 || digits == 0 || row == 0 || i != reference.length() || digits > 7)
+			throw new IllegalArgumentException(key + "=" + value + ": \"" + cell + "\" is not a cell");
+
+		return new int[] { column - 1, row - 1 };
+	}
+}
@@ -0,0 +1,413 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Account totals accumulated within a memory budget. Rows are summed into an in-heap
+ * AccountStore as addAccountData() would; once its estimated size passes the budget the
+ * buffer is sorted by name and spilled to a memory-mapped run file, and a fresh buffer
+ * takes the rows that follow. finish() spills what is left and merges the runs into one
+ * sorted file, summing the partial totals of an account run by run in the order the runs
+ * were written. Lookups then binary search that file through a read-only mapping, so the
+ * heap only ever holds one buffer's worth of accounts.
+ *
+ * A run and the merged file are the same list of records, sorted by the UTF-8 bytes of
+ * the name:
+ *
+ *   int     count, int volumeMonths, int marginMonths
+ *   count * (int name length, UTF-8 name, volumeMonths + marginMonths doubles)
+ *
+ * The merged file comes with an index of count longs, the offset of every record.
+ *
+ * An account whose rows end up in several runs is the sum of its per-run sums, which can
+ * differ in the last bits from summing every row in turn. Each run, and the merged file,
+ * is mapped in one piece, so neither may reach 2GB.
+ */
+public class SpilledAccounts {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_LENGTH = 12;
+
+	// What an account costs in the buffer beyond its months and name: the String, its
+	// symbol table entry and the store's index slot
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final String prefix;
+	private final long budget;
+	private final File directory;
+
+	private AccountStore buffer = new AccountStore();
+	private long bufferBytes;
+	private List<File> runs = new ArrayList<File>();
+	private int runCount;
+	private long spilledBytes;
+
+	private int volumeMonths = -1;
+	private int marginMonths = -1;
+
+	// After finish()
+	private File merged;
+	private File index;
+	private MappedByteBuffer records;
+	private MappedByteBuffer offsets;
+	private int count;
+
+	/*
+	 * Runs go to directory, or the default temp directory when it is null, as prefix*.run
+	 */
+	public SpilledAccounts(String prefix, long budget, File directory) {
+		this.prefix = prefix;
+		this.budget = budget;
+		this.directory = directory;
+	}
+
+	public int getVolumeMonths() {
+		return volumeMonths;
+	}
+
+	public int getMarginMonths() {
+		return marginMonths;
+	}
+
+	/*
+	 * Runs written so far, including those already merged
+	 */
+	public int getRunCount() {
+		return runCount;
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/*
+	 * Accumulate one row
+	 */
+	public void add(String name, double[] volumes, double[] margins) throws IOException {
+
+		int symbol = buffer.getSymbols().intern(name);
+		int entity = buffer.indexOfSymbol(symbol);
+		if (entity >= 0) {
+			buffer.accumulate(entity, volumes, margins);
+			return;
+		}
+
+		buffer.put(symbol, volumes, margins);
+		volumeMonths = buffer.getVolumeMonths();
+		marginMonths = buffer.getMarginMonths();
+
+		bufferBytes += ENTRY_OVERHEAD + 2L * name.length() + 8L * (volumes.length + margins.length);
+		if (bufferBytes > budget)
+			spill();
+	}
+
+	/*
+	 * Write the buffer out as a run, even under budget, so totals summed so far are kept
+	 * apart from the rows still to come
+	 */
+	public void spill() throws IOException {
+
+		int size = buffer.size();
+		if (size == 0)
+			return;
+
+		final byte[][] names = new byte[size][];
+		Integer[] order = new Integer[size];
+		long length = HEADER_LENGTH;
+		int stride = volumeMonths + marginMonths;
+
+		for (int entity=0; entity<size; entity++) {
+			names[entity] = buffer.getName(entity).getBytes(UTF8);
+			order[entity] = Integer.valueOf(entity);
+			length += 4 + names[entity].length + 8L * stride;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareNames(names[a.intValue()], names[b.intValue()]);
+			}
+		});
+
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Spill run of " + length + " bytes is past 2GB, lower the memory budget");
+
+		File run = File.createTempFile(prefix, ".run", directory);
+		RandomAccessFile raf = new RandomAccessFile(run, "rw");
+		try {
+
+			MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			out.putInt(size).putInt(volumeMonths).putInt(marginMonths);
+
+			double[] data = buffer.getData();
+			for (Integer entity : order) {
+
+				byte[] name = names[entity.intValue()];
+				out.putInt(name.length).put(name);
+
+				int offset = buffer.offset(entity.intValue(), ColumnarStore.VOLUME);
+				for (int i=0; i<stride; i++) {
+					out.putDouble(data[offset + i]);
+				}
+			}
+
+		} finally {
+			raf.close();
+		}
+
+		runs.add(run);
+		runCount++;
+		spilledBytes += length;
+
+		buffer = new AccountStore();
+		bufferBytes = 0;
+	}
+
+	/*
+	 * Spill what is left and merge every run into the file lookups are served from
+	 */
+	public void finish() throws IOException {
+
+		spill();
+
+		merged = File.createTempFile(prefix, ".dat", directory);
+		index = File.createTempFile(prefix, ".idx", directory);
+
+		List<RandomAccessFile> open = new ArrayList<RandomAccessFile>();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 64 * 1024));
+		DataOutputStream offsetsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index), 64 * 1024));
+
+		try {
+
+			PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(runs.size(), 1), new Comparator<Run>() {
+				public int compare(Run a, Run b) {
+					int names = compareNames(a.name, b.name);
+					return names != 0 ? names : a.order - b.order;
+				}
+			});
+
+			for (int i=0; i<runs.size(); i++) {
+
+				RandomAccessFile raf = new RandomAccessFile(runs.get(i), "r");
+				open.add(raf);
+
+				Run run = new Run(i, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+				if (run.next())
+					queue.add(run);
+			}
+
+			int stride = volumeMonths + marginMonths;
+			double[] total = new double[Math.max(stride, 0)];
+			long position = HEADER_LENGTH;
+			out.writeInt(0);
+			out.writeInt(volumeMonths);
+			out.writeInt(marginMonths);
+
+			while (!queue.isEmpty()) {
+
+				Run first = queue.poll();
+				byte[] name = first.name;
+				System.arraycopy(first.values, 0, total, 0, stride);
+				if (first.next())
+					queue.add(first);
+
+				// The same account in later runs, taken in run order
+				while (!queue.isEmpty() && compareNames(queue.peek().name, name) == 0) {
+
+					Run next = queue.poll();
+					for (int i=0; i<stride; i++) {
+						total[i] += next.values[i];
+					}
+					if (next.next())
+						queue.add(next);
+				}
+
+				offsetsOut.writeLong(position);
+				out.writeInt(name.length);
+				out.write(name);
+				for (int i=0; i<stride; i++) {
+					out.writeDouble(total[i]);
+				}
+
+				position += 4 + name.length + 8L * stride;
+				count++;
+			}
+
+		} finally {
+			out.close();
+			offsetsOut.close();
+			for (RandomAccessFile raf : open) {
+				raf.close();
+			}
+		}
+
+		for (File run : runs) {
+			delete(run);
+		}
+		runs.clear();
+
+		if (merged.length() > Integer.MAX_VALUE)
+			throw new IOException("Merged account totals of " + merged.length() + " bytes are past 2GB");
+
+		RandomAccessFile raf = new RandomAccessFile(merged, "rw");
+		try {
+			raf.writeInt(count);
+			records = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		raf = new RandomAccessFile(index, "r");
+		try {
+			offsets = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Number of distinct accounts, once finished
+	 */
+	public int size() {
+		return count;
+	}
+
+	/*
+	 * The account's record, or -1 when there is none
+	 */
+	public int find(String name) {
+
+		byte[] key = name.getBytes(UTF8);
+		int low = 0;
+		int high = count - 1;
+
+		while (low <= high) {
+
+			int middle = (low + high) >>> 1;
+			int order = compareName(middle, key);
+
+			if (order < 0)
+				low = middle + 1;
+			else if (order > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/*
+	 * The record's volumes followed by its margins, copied into totals from offset on
+	 */
+	public void get(int record, double[] totals, int offset) {
+
+		int position = (int) offsets.getLong(record * 8);
+		position += 4 + records.getInt(position);
+
+		int stride = volumeMonths + marginMonths;
+		for (int i=0; i<stride; i++, position+=8) {
+			totals[offset + i] = records.getDouble(position);
+		}
+	}
+
+	/*
+	 * Delete every file this aggregation wrote
+	 */
+	public void close() {
+
+		for (File run : runs) {
+			delete(run);
+		}
+		runs.clear();
+
+		records = null;
+		offsets = null;
+		if (merged != null)
+			delete(merged);
+		if (index != null)
+			delete(index);
+	}
+
+	private int compareName(int record, byte[] key) {
+
+		int position = (int) offsets.getLong(record * 8);
+		int length = records.getInt(position);
+		position += 4;
+
+		int common = Math.min(length, key.length);
+		for (int i=0; i<common; i++) {
+			int a = records.get(position + i) & 0xFF;
+			int b = key[i] & 0xFF;
+			if (a != b)
+				return a - b;
+		}
+		return length - key.length;
+	}
+
+	private static int compareNames(byte[] a, byte[] b) {
+
+		int common = Math.min(a.length, b.length);
+		for (int i=0; i<common; i++) {
+			int x = a[i] & 0xFF;
+			int y = b[i] & 0xFF;
+			if (x != y)
+				return x - y;
+		}
+		return a.length - b.length;
+	}
+
+	/*
+	 * A mapping that cannot be unmapped may keep the file from being deleted on some
+	 * platforms; it then goes when the JVM exits
+	 */
+	private static void delete(File file) {
+		if (!file.delete())
+			file.deleteOnExit();
+	}
+
+	/*
+	 * Cursor over one mapped run
+	 */
+	private class Run {
+
+		final int order;
+		final MappedByteBuffer buffer;
+		int remaining;
+		byte[] name;
+		double[] values;
+
+		Run(int order, MappedByteBuffer buffer) {
+
+			this.order = order;
+			this.buffer = buffer;
+			remaining = buffer.getInt();
+			buffer.getInt();
+			buffer.getInt();
+			values = new double[volumeMonths + marginMonths];
+		}
+
+		boolean next() {
+
+			if (remaining == 0)
+				return false;
+			remaining--;
+
+			name = new byte[buffer.getInt()];
+			buffer.get(name);
+			for (int i=0; i<values.length; i++) {
+				values[i] = buffer.getDouble();
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * The history's warehouses, kept on disk instead of in a WarehouseStore. Only the
+ * warehouse being read is held, as a one-warehouse WarehouseStore; when the rows move on
+ * to another warehouse its accounts are appended to a temp file as one block, and the
+ * heap keeps just the warehouse names and where each one's blocks start.
+ *
+ * Every warehouse has two blocks: what the current source (startSource()) has for it, and
+ * the merged result of the sources before. Within a source, a warehouse seen again
+ * writes a new block that supersedes the old one, as WarehouseStore.startWarehouse()
+ * does, and rows added to an earlier warehouse without starting it again read its block
+ * back and continue it. When a source ends, each warehouse it had is accumulated into
+ * that warehouse's merged block, the way readHistories() merges its partials. Warehouses
+ * keep the position they were first seen at.
+ *
+ * A block is
+ *
+ *   int     accounts, int volumeMonths, int marginMonths
+ *   accounts * (int name length, UTF-8 name, volumeMonths + marginMonths doubles)
+ *
+ * The interface methods cannot throw IOException, so a failing write or read surfaces as
+ * an IllegalStateException caused by it.
+ */
+public class SpilledWarehouses implements WarehouseSink {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_LENGTH = 12;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private long end;
+
+	private SymbolTable warehouseSymbols = new SymbolTable();
+
+	// The current source's block of each warehouse, -1 when the source has none
+	private long[] sourceOffsets = new long[0];
+	private int[] sourceLengths = new int[0];
+	private boolean[] sourceEmpty = new boolean[0];
+
+	// Every earlier source's blocks merged, -1 before the first source ends
+	private long[] mergedOffsets = new long[0];
+	private int[] mergedLengths = new int[0];
+
+	// The last source each warehouse was started in, and the warehouses of this source
+	private int[] sources = new int[0];
+	private int source = 0;
+	private int[] touched = new int[8];
+	private int touchedCount = 0;
+
+	// The warehouse rows currently go to, or -1
+	private WarehouseStore current;
+	private int currentWarehouse = -1;
+
+	/*
+	 * Blocks go to directory, or the default temp directory when it is null
+	 */
+	public SpilledWarehouses(File directory) throws IOException {
+
+		file = File.createTempFile("warehouses", ".blk", directory);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	/*
+	 * Rows from here on belong to the next history sheet: the warehouses of the sheet
+	 * before are merged, and only found again once a row starts them
+	 */
+	public void startSource() {
+		endSource();
+		source++;
+	}
+
+	public int getWarehouseCount() {
+		return warehouseSymbols.size();
+	}
+
+	public String getWarehouseName(int warehouse) {
+		return warehouseSymbols.getName(warehouse);
+	}
+
+	public long getSpilledBytes() {
+		return end;
+	}
+
+	public int warehouseIdOf(String name) {
+
+		int warehouse = warehouseSymbols.idOf(name);
+		return (warehouse >= 0 && sources[warehouse] == source) ? warehouse : -1;
+	}
+
+	public boolean isEmpty(int warehouse) {
+
+		if (warehouse == currentWarehouse)
+			return current.isEmpty(0);
+		return sourceEmpty[warehouse];
+	}
+
+	public int startWarehouse(String name) {
+
+		flush();
+
+		int warehouse = warehouseSymbols.idOf(name);
+		if (warehouse < 0) {
+
+			warehouse = warehouseSymbols.intern(name);
+			if (warehouse == sourceOffsets.length) {
+				int capacity = Math.max(8, warehouse * 2);
+				sourceOffsets = Arrays.copyOf(sourceOffsets, capacity);
+				sourceLengths = Arrays.copyOf(sourceLengths, capacity);
+				sourceEmpty = Arrays.copyOf(sourceEmpty, capacity);
+				mergedOffsets = Arrays.copyOf(mergedOffsets, capacity);
+				mergedLengths = Arrays.copyOf(mergedLengths, capacity);
+				sources = Arrays.copyOf(sources, capacity);
+			}
+			mergedOffsets[warehouse] = -1;
+			sources[warehouse] = -1;
+		}
+
+		if (sources[warehouse] != source) {
+			sources[warehouse] = source;
+			if (touchedCount == touched.length)
+				touched = Arrays.copyOf(touched, touchedCount * 2);
+			touched[touchedCount++] = warehouse;
+		}
+
+		sourceOffsets[warehouse] = -1;
+		current = new WarehouseStore();
+		current.startWarehouse(name);
+		currentWarehouse = warehouse;
+		return warehouse;
+	}
+
+	public int put(int warehouse, String account, double[] volumes, double[] margins) {
+
+		if (warehouse != currentWarehouse) {
+			flush();
+			current = readBlock(warehouse, sourceOffsets[warehouse], sourceLengths[warehouse]);
+			currentWarehouse = warehouse;
+		}
+
+		return current.put(0, account, volumes, margins);
+	}
+
+	/*
+	 * Merge the last source; no more rows are expected
+	 */
+	public void finish() {
+		endSource();
+	}
+
+	/*
+	 * The warehouse's merged accounts, as warehouse 0 of a store of its own
+	 */
+	public WarehouseStore load(int warehouse) {
+		return readBlock(warehouse, mergedOffsets[warehouse], mergedLengths[warehouse]);
+	}
+
+	/*
+	 * Delete the block file
+	 */
+	public void close() throws IOException {
+		raf.close();
+		file.delete();
+	}
+
+	/*
+	 * Accumulate every warehouse of the source that ends into its merged block: accounts
+	 * it already had add up, new ones follow them
+	 */
+	private void endSource() {
+
+		flush();
+
+		for (int i=0; i<touchedCount; i++) {
+
+			int warehouse = touched[i];
+			if (mergedOffsets[warehouse] < 0) {
+				mergedOffsets[warehouse] = sourceOffsets[warehouse];
+				mergedLengths[warehouse] = sourceLengths[warehouse];
+				continue;
+			}
+
+			WarehouseStore merged = load(warehouse);
+			WarehouseStore added = readBlock(warehouse, sourceOffsets[warehouse], sourceLengths[warehouse]);
+
+			for (int slot=0; slot<added.getSlotCount(0); slot++) {
+
+				int entity = added.getEntity(0, slot);
+				double[] volumes = added.get(entity, ColumnarStore.VOLUME);
+				double[] margins = added.get(entity, ColumnarStore.MARGIN);
+
+				int existing = merged.indexOf(0, added.getAccountName(entity));
+				if (existing >= 0)
+					merged.accumulate(existing, volumes, margins);
+				else
+					merged.put(0, added.getAccountName(entity), volumes, margins);
+			}
+
+			mergedOffsets[warehouse] = writeBlock(merged);
+			mergedLengths[warehouse] = (int) (end - mergedOffsets[warehouse]);
+		}
+
+		touchedCount = 0;
+	}
+
+	/*
+	 * Append the current warehouse's accounts as its block in this source
+	 */
+	private void flush() {
+
+		if (currentWarehouse < 0)
+			return;
+
+		WarehouseStore store = current;
+		int warehouse = currentWarehouse;
+		current = null;
+		currentWarehouse = -1;
+
+		sourceOffsets[warehouse] = writeBlock(store);
+		sourceLengths[warehouse] = (int) (end - sourceOffsets[warehouse]);
+		sourceEmpty[warehouse] = store.isEmpty(0);
+	}
+
+	/*
+	 * Append the accounts of warehouse 0 that are not removed; returns where the block starts
+	 */
+	private long writeBlock(WarehouseStore store) {
+
+		int stride = Math.max(store.getVolumeMonths() + store.getMarginMonths(), 0);
+		byte[][] names = new byte[store.getSlotCount(0)][];
+		long length = HEADER_LENGTH;
+		int accounts = 0;
+
+		for (int slot=0; slot<names.length; slot++) {
+
+			int entity = store.getEntity(0, slot);
+			if (store.isRemoved(entity))
+				continue;
+
+			names[slot] = store.getAccountName(entity).getBytes(UTF8);
+			length += 4 + names[slot].length + 8L * stride;
+			accounts++;
+		}
+
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalStateException("Warehouse " + store.getWarehouseName(0) + " is past 2GB");
+
+		ByteBuffer block = ByteBuffer.allocate((int) length);
+		block.putInt(accounts).putInt(Math.max(store.getVolumeMonths(), 0)).putInt(Math.max(store.getMarginMonths(), 0));
+
+		double[] data = store.getData();
+		for (int slot=0; slot<names.length; slot++) {
+
+			if (names[slot] == null)
+				continue;
+
+			block.putInt(names[slot].length).put(names[slot]);
+			int offset = store.offset(store.getEntity(0, slot), ColumnarStore.VOLUME);
+			for (int i=0; i<stride; i++) {
+				block.putDouble(data[offset + i]);
+			}
+		}
+		block.flip();
+
+		long start = end;
+		try {
+			long position = start;
+			while (block.hasRemaining()) {
+				position += channel.write(block, position);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Spilling warehouse " + store.getWarehouseName(0) + " failed", e);
+		}
+
+		end += length;
+		return start;
+	}
+
+	/*
+	 * A block read back as warehouse 0 of a store of its own; an empty store for offset -1
+	 */
+	private WarehouseStore readBlock(int warehouse, long offset, int length) {
+
+		WarehouseStore store = new WarehouseStore();
+		store.startWarehouse(getWarehouseName(warehouse));
+		if (offset < 0)
+			return store;
+
+		ByteBuffer block = ByteBuffer.allocate(length);
+		try {
+			while (block.hasRemaining()) {
+				if (channel.read(block, offset + block.position()) < 0)
+					throw new IOException("Warehouse block past the end of " + file);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Reading warehouse " + getWarehouseName(warehouse) + " back failed", e);
+		}
+		block.flip();
+
+		int accounts = block.getInt();
+		double[] volumes = new double[block.getInt()];
+		double[] margins = new double[block.getInt()];
+
+		for (int i=0; i<accounts; i++) {
+
+			byte[] name = new byte[block.getInt()];
+			block.get(name);
+			block.asDoubleBuffer().get(volumes);
+			block.position(block.position() + 8 * volumes.length);
+			block.asDoubleBuffer().get(margins);
+			block.position(block.position() + 8 * margins.length);
+
+			store.put(0, new String(name, UTF8), volumes, margins);
+		}
+
+		return store;
+	}
+}
@@ -0,0 +1,847 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+
+/*
+ * Row-at-a-time reader for BIFF8 (.xls) workbooks.
+ *
+ * Workbook.getWorkbook() builds a Cell object for every cell of every sheet before
+ * anything can be looked at. This reader instead walks the OLE2 sector chain of the
+ * "Workbook" stream straight off the disk and decodes the BIFF records as they go by,
+ * handing each populated row to a RowHandler. The only things kept in memory are the
+ * FAT, the shared string table and the row currently being assembled.
+ *
+ * FORMAT and XF records are not read, so a numeric cell is only ever a number: its text
+ * is what jxl gives for a cell in the General format, whatever format the cell has. Names
+ * and labels that are meant as text, such as month labels, must be text cells for both
+ * readers to agree on them.
+ */
+public class StreamingWorkbookReader {
+
+	public interface RowHandler {
+		void processRow(Row row);
+	}
+
+	/*
+	 * The file is not a workbook this reader can decode, as opposed to one that could not
+	 * be read at all. A workbook cut short ends in an EOFException instead.
+	 */
+	public static class FormatException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public FormatException(String message) {
+			super(message);
+		}
+	}
+
+	// BIFF record types we care about
+	private static final int BOF = 0x0809;
+	private static final int EOF = 0x000A;
+	private static final int FILEPASS = 0x002F;
+	private static final int BOUNDSHEET = 0x0085;
+	private static final int SST = 0x00FC;
+	private static final int CONTINUE = 0x003C;
+	private static final int NUMBER = 0x0203;
+	private static final int RK = 0x027E;
+	private static final int MULRK = 0x00BD;
+	private static final int LABELSST = 0x00FD;
+	private static final int LABEL = 0x0204;
+	private static final int RSTRING = 0x00D6;
+	private static final int FORMULA = 0x0006;
+	private static final int STRING = 0x0207;
+	private static final int BOOLERR = 0x0205;
+
+	private static final int BIFF8_VERSION = 0x0600;
+	private static final int MAX_RECORD_LENGTH = 8224;
+
+	private File file;
+
+	public StreamingWorkbookReader(File file) {
+		this.file = file;
+	}
+
+	/*
+	 * Stream every populated row of the given sheet to the handler, in row order.
+	 * The Row instance is reused, so handlers must copy anything they want to keep.
+	 */
+	public void read(int sheetIndex, RowHandler handler) throws IOException {
+		read(sheetIndex, handler, Integer.MAX_VALUE);
+	}
+
+	/*
+	 * As read(sheetIndex, handler), but stop once the rows up to lastRow (0 based) are
+	 * through, without decoding the rest of the sheet
+	 */
+	public void read(int sheetIndex, RowHandler handler, int lastRow) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			BiffInput in = new BiffInput(openWorkbookStream(raf));
+
+			ArrayList<Long> sheetOffsets = new ArrayList<Long>();
+			String[] sst = readGlobals(in, sheetOffsets);
+
+			if (sheetIndex >= sheetOffsets.size()) {
+				throw new FormatException("Sheet " + sheetIndex + " does not exist in " + file.getName());
+			}
+
+			in.skipTo(sheetOffsets.get(sheetIndex));
+			readSheet(in, sst, handler, lastRow);
+
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Number of sheets, from the workbook globals alone
+	 */
+	public int getSheetCount() throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			ArrayList<Long> sheetOffsets = new ArrayList<Long>();
+			readGlobals(new BiffInput(openWorkbookStream(raf)), sheetOffsets);
+			return sheetOffsets.size();
+
+		} finally {
+			raf.close();
+		}
+	}
+
+	//===============
+	// Workbook globals: sheet offsets and the shared string table
+	//===============
+	private String[] readGlobals(BiffInput in, ArrayList<Long> sheetOffsets) throws IOException {
+
+		if (!in.next() || in.type != BOF || in.getShort(0) != BIFF8_VERSION) {
+			throw new FormatException(file.getName() + " is not a BIFF8 (Excel 97-2003) workbook");
+		}
+
+		String[] sst = new String[0];
+
+		while (in.next()) {
+
+			if (in.type == EOF) {
+				break;
+			} else if (in.type == FILEPASS) {
+				throw new FormatException(file.getName() + " is password protected");
+			} else if (in.type == BOUNDSHEET) {
+				sheetOffsets.add(in.getInt(0) & 0xFFFFFFFFL);
+			} else if (in.type == SST) {
+
+				// The SST is usually split over a number of CONTINUE records
+				ArrayList<byte[]> segments = new ArrayList<byte[]>();
+				segments.add(in.copyData());
+				while (in.peekType() == CONTINUE) {
+					in.next();
+					segments.add(in.copyData());
+				}
+				sst = new SharedStrings(segments).read();
+			}
+		}
+
+		return sst;
+	}
+
+	//===============
+	// Worksheet substream: cell records, grouped into rows
+	//===============
+	private void readSheet(BiffInput in, String[] sst, RowHandler handler, int lastRow) throws IOException {
+
+		Row row = new Row();
+		int depth = 0;
+
+		while (in.next()) {
+
+			int type = in.type;
+
+			if (type == BOF) {
+				// Embedded charts carry their own BOF/EOF pair
+				depth++;
+				continue;
+			} else if (type == EOF) {
+				depth--;
+				if (depth <= 0) {
+					break;
+				}
+				continue;
+			}
+
+			if (depth != 1) {
+				continue;
+			}
+
+			// Cell records come in row order, so the first one past lastRow ends the read
+			if (lastRow != Integer.MAX_VALUE && isCell(type) && in.getShort(0) > lastRow) {
+				break;
+			}
+
+			switch (type) {
+
+			case NUMBER:
+				row = startCell(row, in.getShort(0), handler);
+				row.setNumber(in.getShort(2), in.getDouble(6));
+				break;
+
+			case RK:
+				row = startCell(row, in.getShort(0), handler);
+				row.setNumber(in.getShort(2), decodeRK(in.getInt(6)));
+				break;
+
+			case MULRK: {
+				row = startCell(row, in.getShort(0), handler);
+				int firstColumn = in.getShort(2);
+				int lastColumn = in.getShort(in.length - 2);
+				for (int x = firstColumn, offset = 4; x <= lastColumn; x++, offset += 6) {
+					row.setNumber(x, decodeRK(in.getInt(offset + 2)));
+				}
+				break;
+			}
+
+			case LABELSST: {
+				row = startCell(row, in.getShort(0), handler);
+				int index = in.getInt(6);
+				row.setText(in.getShort(2), (index >= 0 && index < sst.length) ? sst[index] : "");
+				break;
+			}
+
+			case LABEL:
+			case RSTRING:
+				row = startCell(row, in.getShort(0), handler);
+				row.setText(in.getShort(2), in.getUnicodeString(6));
+				break;
+
+			case FORMULA: {
+				row = startCell(row, in.getShort(0), handler);
+				int x = in.getShort(2);
+				if (in.getShort(12) == 0xFFFF) {
+					// Non-numeric cached result; a string result follows in a STRING record
+					int resultType = in.getByte(6);
+					if (resultType == 0 && in.peekType() == STRING) {
+						in.next();
+						row.setText(x, in.getUnicodeString(0));
+					} else if (resultType == 1) {
+						row.setText(x, in.getByte(8) != 0 ? "TRUE" : "FALSE");
+					}
+				} else {
+					row.setNumber(x, in.getDouble(6));
+				}
+				break;
+			}
+
+			case BOOLERR:
+				row = startCell(row, in.getShort(0), handler);
+				if (in.getByte(7) == 0) {
+					row.setText(in.getShort(2), in.getByte(6) != 0 ? "TRUE" : "FALSE");
+				}
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		if (row.rowIndex >= 0) {
+			handler.processRow(row);
+		}
+	}
+
+	private static boolean isCell(int type) {
+		return type == NUMBER || type == RK || type == MULRK || type == LABELSST || type == LABEL
+				|| type == RSTRING || type == FORMULA || type == BOOLERR;
+	}
+
+	private Row startCell(Row row, int y, RowHandler handler) {
+
+		// Cell records are sorted by row, so a new row index means the previous row is complete
+		if (y != row.rowIndex) {
+			if (row.rowIndex >= 0) {
+				handler.processRow(row);
+			}
+			row.reset(y);
+		}
+		return row;
+	}
+
+	private double decodeRK(int rk) {
+
+		double value;
+		if ((rk & 0x02) != 0) {
+			value = rk >> 2;
+		} else {
+			value = Double.longBitsToDouble(((long) (rk & 0xFFFFFFFC)) << 32);
+		}
+
+		if ((rk & 0x01) != 0) {
+			value /= 100;
+		}
+		return value;
+	}
+
+	//===============
+	// OLE2 compound document: locate the workbook stream and follow its sector chain
+	//===============
+	private InputStream openWorkbookStream(RandomAccessFile raf) throws IOException {
+
+		byte[] header = new byte[512];
+		raf.seek(0);
+		raf.readFully(header);
+
+		if (getInt(header, 0) != 0xE011CFD0 || getInt(header, 4) != 0xE11AB1A1) {
+			throw new FormatException(file.getName() + " is not an OLE2 compound document");
+		}
+
+		int sectorShift = getShort(header, 0x1E);
+		int miniSectorShift = getShort(header, 0x20);
+		int numFatSectors = getInt(header, 0x2C);
+		int firstDirectorySector = getInt(header, 0x30);
+		int miniStreamCutoff = getInt(header, 0x38);
+		int firstMiniFatSector = getInt(header, 0x3C);
+		int firstDifatSector = getInt(header, 0x44);
+
+		int sectorSize = 1 << sectorShift;
+		int entriesPerSector = sectorSize / 4;
+
+		// Collect the FAT sector numbers from the header DIFAT and any DIFAT sectors
+		int[] fatSectors = new int[numFatSectors];
+		int found = 0;
+		for (int i = 0; i < 109 && found < numFatSectors; i++) {
+			fatSectors[found++] = getInt(header, 0x4C + i * 4);
+		}
+
+		byte[] sector = new byte[sectorSize];
+		int difatSector = firstDifatSector;
+		while (found < numFatSectors && difatSector >= 0) {
+			readSector(raf, sectorShift, difatSector, sector);
+			for (int i = 0; i < entriesPerSector - 1 && found < numFatSectors; i++) {
+				fatSectors[found++] = getInt(sector, i * 4);
+			}
+			difatSector = getInt(sector, sectorSize - 4);
+		}
+
+		int[] fat = new int[numFatSectors * entriesPerSector];
+		for (int i = 0; i < numFatSectors; i++) {
+			readSector(raf, sectorShift, fatSectors[i], sector);
+			for (int j = 0; j < entriesPerSector; j++) {
+				fat[i * entriesPerSector + j] = getInt(sector, j * 4);
+			}
+		}
+
+		// Walk the directory looking for the workbook stream
+		int rootStart = -1;
+		long rootSize = 0;
+		int workbookStart = -1;
+		long workbookSize = 0;
+
+		int directorySector = firstDirectorySector;
+		boolean first = true;
+		while (directorySector >= 0 && workbookStart < 0) {
+
+			readSector(raf, sectorShift, directorySector, sector);
+
+			for (int offset = 0; offset < sectorSize; offset += 128) {
+
+				int nameLength = getShort(sector, offset + 0x40);
+				int entryType = sector[offset + 0x42];
+				int start = getInt(sector, offset + 0x74);
+				long size = getInt(sector, offset + 0x78) & 0xFFFFFFFFL;
+
+				if (first) {
+					rootStart = start;
+					rootSize = size;
+					first = false;
+					continue;
+				}
+
+				if (entryType == 2 && nameLength > 2) {
+					StringBuilder name = new StringBuilder();
+					for (int c = 0; c < nameLength / 2 - 1; c++) {
+						name.append((char) getShort(sector, offset + c * 2));
+					}
+					String entryName = name.toString();
+					if (entryName.equalsIgnoreCase("Workbook") || entryName.equalsIgnoreCase("Book")) {
+						workbookStart = start;
+						workbookSize = size;
+						break;
+					}
+				}
+			}
+
+			directorySector = fat[directorySector];
+		}
+
+		if (workbookStart < 0) {
+			throw new FormatException("No workbook stream found in " + file.getName());
+		}
+
+		if (workbookSize >= miniStreamCutoff) {
+			return new SectorInputStream(raf, fat, sectorShift, workbookStart, workbookSize);
+		}
+
+		// Tiny workbooks live in the mini stream, which is small enough to just load
+		byte[] miniStream = readFully(new SectorInputStream(raf, fat, sectorShift, rootStart, rootSize), (int) rootSize);
+
+		ArrayList<Integer> miniFat = new ArrayList<Integer>();
+		int miniFatSector = firstMiniFatSector;
+		while (miniFatSector >= 0) {
+			readSector(raf, sectorShift, miniFatSector, sector);
+			for (int j = 0; j < entriesPerSector; j++) {
+				miniFat.add(getInt(sector, j * 4));
+			}
+			miniFatSector = fat[miniFatSector];
+		}
+
+		int miniSectorSize = 1 << miniSectorShift;
+		byte[] data = new byte[(int) workbookSize];
+		int pos = 0;
+		int miniSector = workbookStart;
+		while (miniSector >= 0 && pos < data.length) {
+			int len = Math.min(miniSectorSize, data.length - pos);
+			System.arraycopy(miniStream, miniSector * miniSectorSize, data, pos, len);
+			pos += len;
+			miniSector = miniFat.get(miniSector);
+		}
+
+		return new java.io.ByteArrayInputStream(data);
+	}
+
+	private static void readSector(RandomAccessFile raf, int sectorShift, int sectorIndex, byte[] buffer) throws IOException {
+		raf.seek(((long) sectorIndex + 1) << sectorShift);
+		raf.readFully(buffer);
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		int pos = 0;
+		while (pos < length) {
+			int n = in.read(data, pos, length - pos);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			pos += n;
+		}
+		return data;
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+				| ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+	}
+
+	/*
+	 * A populated worksheet row. Only the columns that actually held a value are
+	 * cleared between rows, so a wide sheet costs nothing per empty column.
+	 */
+	public static class Row {
+
+		private int rowIndex = -1;
+		private String[] text = new String[32];
+		private double[] numbers = new double[32];
+		private boolean[] numeric = new boolean[32];
+		private int[] used = new int[32];
+		private int usedCount = 0;
+		private DecimalFormat general;
+
+		public int getRow() {
+			return rowIndex;
+		}
+
+		public boolean isNumber(int column) {
+			return column < numeric.length && numeric[column];
+		}
+
+		public double getNumber(int column) {
+			return numbers[column];
+		}
+
+		/*
+		 * The text of the cell, "" when empty. A number is rendered as jxl renders one in
+		 * the General format ("#.###"); a date or a number with any other format comes
+		 * out differently from Cell.getContents(), see the class comment.
+		 */
+		public String getContents(int column) {
+
+			if (column >= text.length) {
+				return "";
+			}
+
+			if (numeric[column]) {
+				if (general == null) {
+					general = new DecimalFormat("#.###");
+				}
+				return general.format(numbers[column]);
+			}
+
+			return text[column] == null ? "" : text[column];
+		}
+
+		void reset(int y) {
+			for (int i = 0; i < usedCount; i++) {
+				int x = used[i];
+				text[x] = null;
+				numbers[x] = 0;
+				numeric[x] = false;
+			}
+			usedCount = 0;
+			rowIndex = y;
+		}
+
+		void setNumber(int column, double value) {
+			ensureColumn(column);
+			numbers[column] = value;
+			numeric[column] = true;
+		}
+
+		void setText(int column, String value) {
+			ensureColumn(column);
+			text[column] = value;
+			numeric[column] = false;
+		}
+
+		private void ensureColumn(int column) {
+
+			if (column >= text.length) {
+				int size = Math.max(column + 1, text.length * 2);
+				String[] newText = new String[size];
+				double[] newNumbers = new double[size];
+				boolean[] newNumeric = new boolean[size];
+				System.arraycopy(text, 0, newText, 0, text.length);
+				System.arraycopy(numbers, 0, newNumbers, 0, numbers.length);
+				System.arraycopy(numeric, 0, newNumeric, 0, numeric.length);
+				text = newText;
+				numbers = newNumbers;
+				numeric = newNumeric;
+			}
+
+			if (usedCount == used.length) {
+				int[] newUsed = new int[used.length * 2];
+				System.arraycopy(used, 0, newUsed, 0, used.length);
+				used = newUsed;
+			}
+			used[usedCount++] = column;
+		}
+	}
+
+	/*
+	 * Reads one BIFF record at a time into a reusable buffer, with a single record of look-ahead
+	 */
+	private static class BiffInput {
+
+		private InputStream in;
+		private long position = 0;
+		private byte[] header = new byte[4];
+		private boolean peeked = false;
+		private int peekedType;
+		private int peekedLength;
+
+		int type;
+		int length;
+		byte[] data = new byte[MAX_RECORD_LENGTH];
+
+		BiffInput(InputStream in) {
+			this.in = in;
+		}
+
+		boolean next() throws IOException {
+
+			if (!peeked && !readHeader()) {
+				return false;
+			}
+			peeked = false;
+
+			type = peekedType;
+			length = peekedLength;
+			if (length > data.length) {
+				data = new byte[length];
+			}
+			readBytes(data, length);
+			return true;
+		}
+
+		int peekType() throws IOException {
+			if (!peeked) {
+				if (!readHeader()) {
+					return -1;
+				}
+				peeked = true;
+			}
+			return peekedType;
+		}
+
+		void skipTo(long offset) throws IOException {
+			if (peeked || offset < position) {
+				throw new FormatException("Cannot seek backwards in the workbook stream");
+			}
+			while (position < offset) {
+				long n = in.skip(offset - position);
+				if (n <= 0) {
+					throw new EOFException();
+				}
+				position += n;
+			}
+		}
+
+		byte[] copyData() {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, 0, copy, 0, length);
+			return copy;
+		}
+
+		int getByte(int offset) {
+			return data[offset] & 0xFF;
+		}
+
+		int getShort(int offset) {
+			return StreamingWorkbookReader.getShort(data, offset);
+		}
+
+		int getInt(int offset) {
+			return StreamingWorkbookReader.getInt(data, offset);
+		}
+
+		double getDouble(int offset) {
+			long low = getInt(offset) & 0xFFFFFFFFL;
+			long high = getInt(offset + 4) & 0xFFFFFFFFL;
+			return Double.longBitsToDouble((high << 32) | low);
+		}
+
+		String getUnicodeString(int offset) {
+
+			int count = getShort(offset);
+			int flags = getByte(offset + 2);
+			int pos = offset + 3;
+			if ((flags & 0x08) != 0) {
+				pos += 2;
+			}
+			if ((flags & 0x04) != 0) {
+				pos += 4;
+			}
+
+			char[] chars = new char[count];
+			if ((flags & 0x01) != 0) {
+				for (int i = 0; i < count; i++, pos += 2) {
+					chars[i] = (char) getShort(pos);
+				}
+			} else {
+				for (int i = 0; i < count; i++, pos++) {
+					chars[i] = (char) (data[pos] & 0xFF);
+				}
+			}
+			return new String(chars);
+		}
+
+		private boolean readHeader() throws IOException {
+
+			int n = 0;
+			while (n < 4) {
+				int r = in.read(header, n, 4 - n);
+				if (r < 0) {
+					if (n == 0) {
+						return false;
+					}
+					throw new EOFException();
+				}
+				n += r;
+			}
+			position += 4;
+
+			peekedType = StreamingWorkbookReader.getShort(header, 0);
+			peekedLength = StreamingWorkbookReader.getShort(header, 2);
+			return true;
+		}
+
+		private void readBytes(byte[] buffer, int len) throws IOException {
+			int n = 0;
+			while (n < len) {
+				int r = in.read(buffer, n, len - n);
+				if (r < 0) {
+					throw new EOFException();
+				}
+				n += r;
+			}
+			position += len;
+		}
+	}
+
+	/*
+	 * Decodes the SST, whose strings may be split across CONTINUE record boundaries.
+	 * When character data is split, the continuation starts with a fresh option flags byte.
+	 */
+	private static class SharedStrings {
+
+		private ArrayList<byte[]> segments;
+		private int segment = 0;
+		private int pos = 0;
+
+		SharedStrings(ArrayList<byte[]> segments) {
+			this.segments = segments;
+		}
+
+		String[] read() throws IOException {
+
+			readInt(); // total references
+			int unique = readInt();
+
+			String[] strings = new String[unique];
+			for (int i = 0; i < unique; i++) {
+
+				int count = readShort();
+				int flags = readByte();
+				int runs = 0;
+				int extLength = 0;
+
+				if ((flags & 0x08) != 0) {
+					runs = readShort();
+				}
+				if ((flags & 0x04) != 0) {
+					extLength = readInt();
+				}
+
+				boolean wide = (flags & 0x01) != 0;
+				char[] chars = new char[count];
+				for (int c = 0; c < count; c++) {
+
+					if (pos >= segments.get(segment).length) {
+						nextSegment();
+						wide = (readByte() & 0x01) != 0;
+					}
+					chars[c] = (char) (wide ? readShort() : readByte());
+				}
+				strings[i] = new String(chars);
+
+				skip(runs * 4 + extLength);
+			}
+
+			return strings;
+		}
+
+		private void nextSegment() throws IOException {
+			segment++;
+			pos = 0;
+			if (segment >= segments.size()) {
+				throw new FormatException("Shared string table is truncated");
+			}
+		}
+
+		private int readByte() throws IOException {
+			while (pos >= segments.get(segment).length) {
+				nextSegment();
+			}
+			return segments.get(segment)[pos++] & 0xFF;
+		}
+
+		private int readShort() throws IOException {
+			return readByte() | (readByte() << 8);
+		}
+
+		private int readInt() throws IOException {
+			return readShort() | (readShort() << 16);
+		}
+
+		private void skip(int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				readByte();
+			}
+		}
+	}
+
+	/*
+	 * Sequential view of a stream stored as a FAT sector chain, one sector read at a time
+	 */
+	private static class SectorInputStream extends InputStream {
+
+		private RandomAccessFile raf;
+		private int[] fat;
+		private int sectorShift;
+		private byte[] buffer;
+		private int sector;
+		private int bufferPos;
+		private long remaining;
+
+		SectorInputStream(RandomAccessFile raf, int[] fat, int sectorShift, int startSector, long size) {
+			this.raf = raf;
+			this.fat = fat;
+			this.sectorShift = sectorShift;
+			this.buffer = new byte[1 << sectorShift];
+			this.sector = startSector;
+			this.bufferPos = buffer.length;
+			this.remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (remaining <= 0) {
+				return -1;
+			}
+
+			if (bufferPos >= buffer.length && !fill()) {
+				return -1;
+			}
+
+			int n = (int) Math.min(Math.min(len, buffer.length - bufferPos), remaining);
+			System.arraycopy(buffer, bufferPos, b, off, n);
+			bufferPos += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+
+			long skipped = 0;
+			while (skipped < n && remaining > 0) {
+
+				// Whole sectors can be stepped over by following the chain without reading them
+				if (bufferPos >= buffer.length && n - skipped >= buffer.length && remaining >= buffer.length) {
+					if (sector < 0) {
+						break;
+					}
+					sector = fat[sector];
+					skipped += buffer.length;
+					remaining -= buffer.length;
+					continue;
+				}
+
+				if (bufferPos >= buffer.length && !fill()) {
+					break;
+				}
+				int step = (int) Math.min(Math.min(n - skipped, buffer.length - bufferPos), remaining);
+				bufferPos += step;
+				remaining -= step;
+				skipped += step;
+			}
+			return skipped;
+		}
+
+		private boolean fill() throws IOException {
+			if (sector < 0) {
+				return false;
+			}
+			readSector(raf, sectorShift, sector, buffer);
+			sector = fat[sector];
+			bufferPos = 0;
+			return true;
+		}
+	}
+}
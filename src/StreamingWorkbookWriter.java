@@ -0,0 +1,556 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+ * Row-at-a-time writer for single sheet BIFF8 (.xls) workbooks, the counterpart of
+ * StreamingWorkbookReader.
+ *
+ * A jxl WritableWorkbook keeps a cell object for every value until workbook.write(). This
+ * writer instead encodes each cell as a BIFF record as it comes. Cells are held one block
+ * of 32 rows at a time, which is written out as Excel lays a sheet out: the block's ROW
+ * records, its cells, then a DBCELL pointing back at them. The blocks go to a temp file
+ * next to the output, since the sheet's INDEX of DBCELL positions comes before them and
+ * is only known on close(); close() writes the sheet's BOF, INDEX and DIMENSIONS and
+ * copies the blocks in behind them.
+ *
+ * The "Workbook" stream is laid out as the first sectors of the OLE2 file. The FAT,
+ * directory and header only depend on the stream length, so they are appended or
+ * patched in on close(). Apart from one block and a write buffer, nothing in the heap
+ * grows with the sheet.
+ *
+ * Cells have to arrive in row order, and in column order within a row. Strings are
+ * written inline (LABEL records) rather than through a shared string table, and every
+ * cell uses one of the CellFormats styles.
+ */
+public class StreamingWorkbookWriter {
+
+	// Cell styles
+	public static final int PLAIN = CellFormats.PLAIN;
+	public static final int CAPTION = CellFormats.CAPTION;
+
+	// BIFF records
+	private static final int BOF = 0x0809;
+	private static final int EOF = 0x000A;
+	private static final int CODEPAGE = 0x0042;
+	private static final int WINDOW1 = 0x003D;
+	private static final int FONT = 0x0031;
+	private static final int XF = 0x00E0;
+	private static final int STYLE = 0x0293;
+	private static final int BOUNDSHEET = 0x0085;
+	private static final int DIMENSIONS = 0x0200;
+	private static final int INDEX = 0x020B;
+	private static final int ROW = 0x0208;
+	private static final int DBCELL = 0x00D7;
+	private static final int NUMBER = 0x0203;
+	private static final int LABEL = 0x0204;
+	private static final int WINDOW2 = 0x023E;
+
+	private static final int BIFF8_VERSION = 0x0600;
+	private static final int MAX_RECORD_LENGTH = 8224;
+	private static final int MAX_ROWS = 65536;
+	private static final int MAX_COLUMNS = 256;
+
+	// Rows per ROW/DBCELL block; a full sheet has 2048 blocks, whose INDEX fits one record
+	private static final int BLOCK_ROWS = 32;
+	private static final int ROW_RECORD_LENGTH = 20;
+	private static final int DEFAULT_ROW_HEIGHT = 0x00FF;
+
+	// XF 0-14 are the style XFs and 15 the default cell XF every BIFF8 file needs
+	private static final int FIRST_CELL_XF = 16;
+
+	// OLE2
+	private static final int SECTOR_SIZE = 512;
+	private static final int HEADER_DIFAT_ENTRIES = 109;
+	private static final int MINI_STREAM_CUTOFF = 4096;
+	private static final int FREESECT = 0xFFFFFFFF;
+	private static final int ENDOFCHAIN = 0xFFFFFFFE;
+	private static final int FATSECT = 0xFFFFFFFD;
+	private static final int DIFSECT = 0xFFFFFFFC;
+	private static final int NOSTREAM = 0xFFFFFFFF;
+
+	private FileOutputStream file;
+	private OutputStream out;
+	private ByteBuffer record = ByteBuffer.allocate(4 + MAX_RECORD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+	// Bytes of the Workbook stream written so far; the stream starts right after the OLE2 header
+	private long position = 0;
+	private long boundSheetOffset;
+
+	// The sheet's finished blocks, and where each block's DBCELL is within them
+	private File blocksFile;
+	private FileOutputStream blocksStream;
+	private OutputStream blocks;
+	private long blocksPosition = 0;
+	private int[] dbCells = new int[64];
+	private int dbCellCount = 0;
+
+	// The block being filled: its cell records, and each of its rows' number, columns and
+	// where the row's cells start in blockCells
+	private ByteArrayOutputStream blockCells = new ByteArrayOutputStream();
+	private int block = -1;
+	private int[] blockRows = new int[BLOCK_ROWS];
+	private int[] blockFirstColumns = new int[BLOCK_ROWS];
+	private int[] blockLastColumns = new int[BLOCK_ROWS];
+	private int[] blockCellStarts = new int[BLOCK_ROWS];
+	private int blockRowCount = 0;
+
+	private int currentRow = -1;
+	private int currentColumn = -1;
+	private int lastColumn = -1;
+
+	public StreamingWorkbookWriter(File file, String sheetName) throws IOException {
+
+		this.file = new FileOutputStream(file);
+		this.out = new BufferedOutputStream(this.file, 64 * 1024);
+
+		try {
+
+			// Leave room for the OLE2 header, written once the stream length is known
+			out.write(new byte[SECTOR_SIZE]);
+
+			writeGlobals(sheetName);
+
+			blocksFile = File.createTempFile(file.getName(), ".rows", file.getAbsoluteFile().getParentFile());
+			blocksStream = new FileOutputStream(blocksFile);
+			blocks = new BufferedOutputStream(blocksStream, 64 * 1024);
+
+		} catch (IOException e) {
+			out.close();
+			if (blocksFile != null)
+				blocksFile.delete();
+			throw e;
+		}
+	}
+
+	public void addNumber(int column, int row, double value, int style) throws IOException {
+
+		position(column, row);
+
+		begin(NUMBER);
+		record.putShort((short) row).putShort((short) column).putShort((short) (FIRST_CELL_XF + style));
+		record.putDouble(value);
+		endCell();
+	}
+
+	/*
+	 * values[offset .. offset+length) as consecutive NUMBER cells of one row, from column on
+	 */
+	public void addNumbers(int column, int row, double[] values, int offset, int length, int style) throws IOException {
+
+		if (length == 0)
+			return;
+
+		position(column, row);
+		position(column + length - 1, row);
+
+		int xf = FIRST_CELL_XF + style;
+		for (int i=0; i<length; i++) {
+			begin(NUMBER);
+			record.putShort((short) row).putShort((short) (column + i)).putShort((short) xf);
+			record.putDouble(values[offset + i]);
+			endCell();
+		}
+	}
+
+	public void addLabel(int column, int row, String value, int style) throws IOException {
+
+		position(column, row);
+
+		begin(LABEL);
+		record.putShort((short) row).putShort((short) column).putShort((short) (FIRST_CELL_XF + style));
+		putString(value, 2);
+		endCell();
+	}
+
+	/*
+	 * Finish the sheet and the OLE2 container around it
+	 */
+	public void close() throws IOException {
+
+		try {
+
+			flushBlock();
+			blocks.close();
+
+			long sheetOffset = position;
+			begin(BOF);
+			record.putShort((short) BIFF8_VERSION).putShort((short) 0x0010).putShort((short) 0x0DBB).putShort((short) 0x07CC);
+			record.putInt(0).putInt(0x06);
+			end();
+
+			// The blocks start right after INDEX and DIMENSIONS, whose lengths are known now
+			long blocksOffset = position + 4 + 16 + 4L * dbCellCount + 4 + 14;
+
+			begin(INDEX);
+			record.putInt(0).putInt(0).putInt(currentRow + 1).putInt(0);
+			for (int i=0; i<dbCellCount; i++) {
+				record.putInt((int) (blocksOffset + dbCells[i]));
+			}
+			end();
+
+			begin(DIMENSIONS);
+			record.putInt(0).putInt(currentRow + 1).putShort((short) 0).putShort((short) (lastColumn + 1)).putShort((short) 0);
+			end();
+
+			copyBlocks();
+
+			begin(WINDOW2);
+			record.putShort((short) 0x06B6).putShort((short) 0).putShort((short) 0).putInt(0x40);
+			record.putShort((short) 0).putShort((short) 0).putInt(0);
+			end();
+
+			begin(EOF);
+			end();
+
+			// Small streams would belong in the mini stream; padding them keeps one layout
+			long streamLength = Math.max(position, MINI_STREAM_CUTOFF);
+			pad(streamLength - position);
+			pad(sectorsFor(streamLength) * SECTOR_SIZE - streamLength);
+
+			writeContainer(streamLength);
+			out.flush();
+
+			FileChannel channel = file.getChannel();
+			patch(channel, SECTOR_SIZE + boundSheetOffset + 4, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, (int) sheetOffset));
+
+		} finally {
+			out.close();
+			blocks.close();
+			blocksFile.delete();
+		}
+	}
+
+	//===============
+	// BIFF
+	//===============
+	private void writeGlobals(String sheetName) throws IOException {
+
+		begin(BOF);
+		record.putShort((short) BIFF8_VERSION).putShort((short) 0x0005).putShort((short) 0x0DBB).putShort((short) 0x07CC);
+		record.putInt(0).putInt(0x06);
+		end();
+
+		// UTF-16
+		begin(CODEPAGE);
+		record.putShort((short) 1200);
+		end();
+
+		begin(WINDOW1);
+		record.putShort((short) 0).putShort((short) 0).putShort((short) 0x4000).putShort((short) 0x2000);
+		record.putShort((short) 0x0038).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 0x0258);
+		end();
+
+		// Fonts 0-3 are the defaults; index 4 is never used, so the style fonts start at 5
+		for (int i=0; i<4; i++) {
+			writeFont(200, 400, 0, "Arial");
+		}
+		for (int i=0; i<CellFormats.getCount(); i++) {
+			CellFormats style = CellFormats.get(i);
+			writeFont(style.getPoints() * 20, style.isBold() ? 700 : 400, style.isUnderline() ? 1 : 0, style.getFontName());
+		}
+
+		for (int i=0; i<15; i++) {
+			writeXF(0, 0xFFF5, 0);
+		}
+		writeXF(0, 0x0001, 0);
+		for (int i=0; i<CellFormats.getCount(); i++) {
+			writeXF(5 + i, 0x0001, 0xF8);
+		}
+
+		// Built-in "Normal" style
+		begin(STYLE);
+		record.putShort((short) 0x8000).put((byte) 0).put((byte) 0xFF);
+		end();
+
+		boundSheetOffset = position;
+		begin(BOUNDSHEET);
+		record.putInt(0).put((byte) 0).put((byte) 0);
+		putString(sheetName, 1);
+		end();
+
+		begin(EOF);
+		end();
+	}
+
+	private void writeFont(int height, int weight, int underline, String name) throws IOException {
+
+		begin(FONT);
+		record.putShort((short) height).putShort((short) 0).putShort((short) 0x7FFF).putShort((short) weight);
+		record.putShort((short) 0).put((byte) underline).put((byte) 0).put((byte) 0).put((byte) 0);
+		putString(name, 1);
+		end();
+	}
+
+	private void writeXF(int font, int type, int usedAttributes) throws IOException {
+
+		begin(XF);
+		record.putShort((short) font).putShort((short) 0).putShort((short) type);
+		record.put((byte) 0x20).put((byte) 0).put((byte) 0).put((byte) usedAttributes);
+		record.putInt(0).putInt(0).putShort((short) 0x20C0);
+		end();
+	}
+
+	/*
+	 * Write the block being filled to the blocks file: a ROW record for each of its rows,
+	 * the cells, and a DBCELL with the offset back to the first ROW record and of each
+	 * row's first cell, relative to the second ROW record and then to the row before, as
+	 * Excel and jxl write them
+	 */
+	private void flushBlock() throws IOException {
+
+		if (blockRowCount == 0)
+			return;
+
+		long firstRow = blocksPosition;
+		for (int i=0; i<blockRowCount; i++) {
+			begin(ROW);
+			record.putShort((short) blockRows[i]).putShort((short) blockFirstColumns[i]).putShort((short) (blockLastColumns[i] + 1));
+			record.putShort((short) DEFAULT_ROW_HEIGHT).putShort((short) 0).putShort((short) 0).putInt(0x0100);
+			blocksPosition += write(blocks);
+		}
+
+		long cellsStart = blocksPosition;
+		blockCells.writeTo(blocks);
+		blocksPosition += blockCells.size();
+
+		if (dbCellCount == dbCells.length)
+			dbCells = Arrays.copyOf(dbCells, dbCellCount * 2);
+		dbCells[dbCellCount++] = (int) blocksPosition;
+
+		begin(DBCELL);
+		record.putInt((int) (blocksPosition - firstRow));
+		record.putShort((short) (cellsStart + blockCellStarts[0] - (firstRow + ROW_RECORD_LENGTH)));
+		for (int i=1; i<blockRowCount; i++) {
+			record.putShort((short) (blockCellStarts[i] - blockCellStarts[i - 1]));
+		}
+		blocksPosition += write(blocks);
+
+		blockCells.reset();
+		blockRowCount = 0;
+	}
+
+	/*
+	 * Append the blocks file to the Workbook stream
+	 */
+	private void copyBlocks() throws IOException {
+
+		out.flush();
+
+		FileInputStream in = new FileInputStream(blocksFile);
+		try {
+			FileChannel source = in.getChannel();
+			FileChannel target = file.getChannel();
+			long copied = 0;
+			while (copied < blocksPosition) {
+				copied += source.transferTo(copied, blocksPosition - copied, target);
+			}
+		} finally {
+			in.close();
+		}
+
+		position += blocksPosition;
+	}
+
+	private void begin(int type) {
+		record.clear();
+		record.putShort((short) type).putShort((short) 0);
+	}
+
+	private void end() throws IOException {
+		position += write(out);
+	}
+
+	/*
+	 * A cell record goes to the block being filled, after the ROW records it still needs
+	 */
+	private void endCell() throws IOException {
+		write(blockCells);
+	}
+
+	private int write(OutputStream target) throws IOException {
+
+		int length = record.position() - 4;
+		record.putShort(2, (short) length);
+		target.write(record.array(), 0, record.position());
+		return record.position();
+	}
+
+	/*
+	 * XLUnicodeString with a 1 or 2 byte character count: 8 bit when every char fits, else UTF-16LE
+	 */
+	private void putString(String value, int countLength) {
+
+		boolean compressed = true;
+		for (int i=0; i<value.length(); i++) {
+			if (value.charAt(i) > 0xFF) {
+				compressed = false;
+				break;
+			}
+		}
+
+		int maxLength = countLength == 1 ? 255 : (record.remaining() - 3) / (compressed ? 1 : 2);
+		if (value.length() > maxLength) {
+			throw new IllegalArgumentException("\"" + value.substring(0, 20) + "...\" is longer than " + maxLength + " characters");
+		}
+
+		if (countLength == 1)
+			record.put((byte) value.length());
+		else
+			record.putShort((short) value.length());
+
+		record.put((byte) (compressed ? 0 : 1));
+		for (int i=0; i<value.length(); i++) {
+			if (compressed)
+				record.put((byte) value.charAt(i));
+			else
+				record.putChar(value.charAt(i));
+		}
+	}
+
+	private void position(int column, int row) throws IOException {
+
+		if (row >= MAX_ROWS || column >= MAX_COLUMNS) {
+			throw new IllegalArgumentException("Cell " + column + "," + row + " is outside a BIFF8 sheet");
+		}
+		if (row < currentRow || (row == currentRow && column <= currentColumn)) {
+			throw new IllegalArgumentException("Cell " + column + "," + row + " written after " + currentColumn + "," + currentRow);
+		}
+
+		if (row != currentRow) {
+
+			if (row / BLOCK_ROWS != block) {
+				flushBlock();
+				block = row / BLOCK_ROWS;
+			}
+
+			blockRows[blockRowCount] = row;
+			blockFirstColumns[blockRowCount] = column;
+			blockCellStarts[blockRowCount] = blockCells.size();
+			blockRowCount++;
+		}
+		blockLastColumns[blockRowCount - 1] = column;
+
+		currentRow = row;
+		currentColumn = column;
+		lastColumn = Math.max(lastColumn, column);
+	}
+
+	//===============
+	// OLE2 container: Workbook stream sectors, then directory, FAT and DIFAT sectors
+	//===============
+	private void writeContainer(long streamLength) throws IOException {
+
+		int streamSectors = sectorsFor(streamLength);
+		int directorySector = streamSectors;
+
+		int fatSectors = 0;
+		int difatSectors = 0;
+		int total;
+		do {
+			total = streamSectors + 1 + fatSectors + difatSectors;
+			fatSectors = (total + SECTOR_SIZE / 4 - 1) / (SECTOR_SIZE / 4);
+			int overflow = fatSectors - HEADER_DIFAT_ENTRIES;
+			difatSectors = overflow > 0 ? (overflow + SECTOR_SIZE / 4 - 2) / (SECTOR_SIZE / 4 - 1) : 0;
+		} while (total != streamSectors + 1 + fatSectors + difatSectors);
+
+		int firstFatSector = directorySector + 1;
+		int firstDifatSector = firstFatSector + fatSectors;
+
+		// Directory: root entry, the Workbook stream and two empty entries
+		ByteBuffer sector = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		putDirectoryEntry(sector, "Root Entry", 5, 1, ENDOFCHAIN, 0);
+		putDirectoryEntry(sector, "Workbook", 2, NOSTREAM, 0, streamLength);
+		putDirectoryEntry(sector, null, 0, NOSTREAM, 0, 0);
+		putDirectoryEntry(sector, null, 0, NOSTREAM, 0, 0);
+		out.write(sector.array());
+
+		// FAT
+		ByteBuffer fat = ByteBuffer.allocate(fatSectors * SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i=0; i<streamSectors; i++) {
+			fat.putInt(i == streamSectors - 1 ? ENDOFCHAIN : i + 1);
+		}
+		fat.putInt(ENDOFCHAIN);
+		for (int i=0; i<fatSectors; i++) {
+			fat.putInt(FATSECT);
+		}
+		for (int i=0; i<difatSectors; i++) {
+			fat.putInt(DIFSECT);
+		}
+		while (fat.hasRemaining()) {
+			fat.putInt(FREESECT);
+		}
+		out.write(fat.array());
+
+		// DIFAT sectors hold whatever FAT locations do not fit in the header
+		int fatIndex = HEADER_DIFAT_ENTRIES;
+		for (int i=0; i<difatSectors; i++) {
+			sector.clear();
+			for (int j=0; j<SECTOR_SIZE / 4 - 1; j++, fatIndex++) {
+				sector.putInt(fatIndex < fatSectors ? firstFatSector + fatIndex : FREESECT);
+			}
+			sector.putInt(i == difatSectors - 1 ? ENDOFCHAIN : firstDifatSector + i + 1);
+			out.write(sector.array());
+		}
+
+		out.flush();
+
+		ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(new byte[] {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1});
+		header.put(new byte[16]);
+		header.putShort((short) 0x003E).putShort((short) 0x0003).putShort((short) 0xFFFE);
+		header.putShort((short) 9).putShort((short) 6);
+		header.put(new byte[6]);
+		header.putInt(0).putInt(fatSectors).putInt(directorySector).putInt(0);
+		header.putInt(MINI_STREAM_CUTOFF).putInt(ENDOFCHAIN).putInt(0);
+		header.putInt(difatSectors > 0 ? firstDifatSector : ENDOFCHAIN).putInt(difatSectors);
+		for (int i=0; i<HEADER_DIFAT_ENTRIES; i++) {
+			header.putInt(i < fatSectors ? firstFatSector + i : FREESECT);
+		}
+		header.flip();
+		patch(file.getChannel(), 0, header);
+	}
+
+	private static void putDirectoryEntry(ByteBuffer sector, String name, int type, int child, int start, long size) {
+
+		int base = sector.position();
+		if (name != null) {
+			for (int i=0; i<name.length(); i++) {
+				sector.putChar(base + i * 2, name.charAt(i));
+			}
+			sector.putShort(base + 64, (short) ((name.length() + 1) * 2));
+		}
+		sector.put(base + 66, (byte) type);
+		sector.put(base + 67, (byte) 1);
+		sector.putInt(base + 68, NOSTREAM);
+		sector.putInt(base + 72, NOSTREAM);
+		sector.putInt(base + 76, child);
+		sector.putInt(base + 116, start);
+		sector.putInt(base + 120, (int) size);
+		sector.position(base + 128);
+	}
+
+	private void pad(long count) throws IOException {
+		for (long i=0; i<count; i++) {
+			out.write(0);
+		}
+	}
+
+	private static int sectorsFor(long length) {
+		return (int) ((length + SECTOR_SIZE - 1) / SECTOR_SIZE);
+	}
+
+	private static void patch(FileChannel channel, long offset, ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			offset += channel.write(data, offset);
+		}
+	}
+}
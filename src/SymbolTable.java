@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Interns names to dense int ids, 0, 1, 2, ... in the order they are first seen, keeping
+ * one copy of each name. Stores that share a table can match their entities by id alone:
+ * an account of the warehouseMap and the same account of the global accountMap carry the
+ * same symbol, so looking one up in the other is an array index instead of a String hash.
+ *
+ * Cell text arrives as one String per distinct shared-string entry of the workbook, and
+ * the table compares by reference before it compares characters, so a name seen again
+ * on a later row matches without touching its chars.
+ *
+ * Lookups take no lock. intern() locks only to add a name that is not there yet, so the
+ * stores of several tasks (history sheets, scenarios, server requests) can share a table.
+ */
+public class SymbolTable {
+
+	/*
+	 * Immutable once built, so a reader that sees the reference sees the whole entry
+	 */
+	private static final class Symbol {
+
+		final String name;
+		final int hash;
+		final int id;
+
+		Symbol(String name, int hash, int id) {
+			this.name = name;
+			this.hash = hash;
+			this.id = id;
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Open addressing with linear probing, kept at most half full
+	private volatile AtomicReferenceArray<Symbol> table = new AtomicReferenceArray<Symbol>(INITIAL_CAPACITY);
+
+	// Symbol by id
+	private volatile AtomicReferenceArray<Symbol> symbols = new AtomicReferenceArray<Symbol>(INITIAL_CAPACITY);
+
+	private volatile int size = 0;
+
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * The name's id, or -1 if it has never been interned
+	 */
+	public int idOf(String name) {
+
+		if (name == null)
+			return -1;
+
+		int hash = name.hashCode();
+		AtomicReferenceArray<Symbol> table = this.table;
+		int mask = table.length() - 1;
+
+		for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+
+			Symbol symbol = table.get(i);
+			if (symbol == null)
+				return -1;
+			if (symbol.hash == hash && (symbol.name == name || symbol.name.equals(name)))
+				return symbol.id;
+		}
+	}
+
+	/*
+	 * The name's id, adding the name if it is new
+	 */
+	public int intern(String name) {
+
+		int id = idOf(name);
+		if (id >= 0)
+			return id;
+
+		synchronized (this) {
+
+			// Someone may have added it since the unlocked lookup
+			id = idOf(name);
+			if (id >= 0)
+				return id;
+
+			id = size;
+			Symbol symbol = new Symbol(name, name.hashCode(), id);
+
+			if (id == symbols.length()) {
+				AtomicReferenceArray<Symbol> grown = new AtomicReferenceArray<Symbol>(id * 2);
+				for (int i=0; i<id; i++) {
+					grown.set(i, symbols.get(i));
+				}
+				symbols = grown;
+			}
+			symbols.set(id, symbol);
+
+			if ((id + 1) * 2 > table.length()) {
+				AtomicReferenceArray<Symbol> grown = new AtomicReferenceArray<Symbol>(table.length() * 2);
+				for (int i=0; i<id; i++) {
+					insert(grown, symbols.get(i));
+				}
+				table = grown;
+			}
+			insert(table, symbol);
+
+			size = id + 1;
+			return id;
+		}
+	}
+
+	public String getName(int id) {
+		return symbols.get(id).name;
+	}
+
+	private static void insert(AtomicReferenceArray<Symbol> table, Symbol symbol) {
+
+		int mask = table.length() - 1;
+		int i = spread(symbol.hash) & mask;
+		while (table.get(i) != null) {
+			i = (i + 1) & mask;
+		}
+		table.set(i, symbol);
+	}
+
+	/*
+	 * Similar names have similar hashes; scatter them before the low bits pick a slot
+	 */
+	private static int spread(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * What BudgetAnalysis.addWarehouseRow() needs from the store it fills: a WarehouseStore,
+ * or SpilledWarehouses when the history is aggregated within a memory budget
+ */
+public interface WarehouseSink {
+
+	// The warehouse's id, or -1 when it is not known
+	int warehouseIdOf(String name);
+
+	boolean isEmpty(int warehouse);
+
+	// Start a fresh account list for the warehouse, replacing any it had
+	int startWarehouse(String name);
+
+	// Set the account's months within the warehouse, adding it if needed
+	int put(int warehouse, String account, double[] volumes, double[] margins);
+}
@@ -0,0 +1,394 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * Per-warehouse accounts. Warehouse and account names are interned to int ids once, and
+ * each (warehouse, account) pair is one entity of the columnar block. Warehouses keep
+ * their accounts in the order they were first seen.
+ *
+ * Account ids are symbols of a SymbolTable the analysis shares with its AccountStores;
+ * warehouse ids come from a table of the store's own, so they stay 0..count-1.
+ */
+public class WarehouseStore extends ColumnarStore implements WarehouseSink {
+
+	private SymbolTable warehouseSymbols = new SymbolTable();
+	private SymbolTable symbols;
+
+	// (warehouseId << 32 | accountId) -> entity
+	private EntityIndex entityIndex = new EntityIndex();
+
+	private int[] entityWarehouse = new int[0];
+	private int[] entityAccount = new int[0];
+
+	// Per entity like the arrays above, so removing an account never reallocates anything
+	// a reader of another warehouse might be looking at
+	private boolean[] removed = new boolean[0];
+
+	private int[][] members = new int[0][];
+	private int[] memberCount = new int[0];
+
+	// Per warehouse, the ids of the accounts masked by markMissing(); null until there is one
+	private BitSet[] missing = new BitSet[0];
+
+	public WarehouseStore() {
+		this(new SymbolTable());
+	}
+
+	public WarehouseStore(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	/*
+	 * The table account ids come from
+	 */
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	//===============
+	// Warehouses
+	//===============
+	public int getWarehouseCount() {
+		return warehouseSymbols.size();
+	}
+
+	public String getWarehouseName(int warehouse) {
+		return warehouseSymbols.getName(warehouse);
+	}
+
+	public int warehouseIdOf(String name) {
+		return warehouseSymbols.idOf(name);
+	}
+
+	public boolean containsWarehouse(String name) {
+		return warehouseIdOf(name) >= 0;
+	}
+
+	/*
+	 * Start a fresh account list for the warehouse. Seeing a warehouse name again
+	 * replaces whatever accounts it had before.
+	 */
+	public int startWarehouse(String name) {
+
+		int warehouse = warehouseIdOf(name);
+
+		if (warehouse < 0) {
+			warehouse = warehouseSymbols.intern(name);
+
+			if (warehouse == members.length) {
+				int[][] newMembers = new int[Math.max(8, members.length * 2)][];
+				int[] newCount = new int[newMembers.length];
+				System.arraycopy(members, 0, newMembers, 0, members.length);
+				System.arraycopy(memberCount, 0, newCount, 0, memberCount.length);
+				members = newMembers;
+				memberCount = newCount;
+				missing = Arrays.copyOf(missing, newMembers.length);
+			}
+			members[warehouse] = new int[8];
+
+		} else {
+			for (int i=0; i<memberCount[warehouse]; i++) {
+				int entity = members[warehouse][i];
+				if (!removed[entity]) {
+					removed[entity] = true;
+					entityIndex.remove(key(warehouse, entityAccount[entity]));
+				}
+			}
+		}
+
+		memberCount[warehouse] = 0;
+		missing[warehouse] = null;
+		return warehouse;
+	}
+
+	/*
+	 * Number of slots in the warehouse, including accounts that have since been removed
+	 */
+	public int getSlotCount(int warehouse) {
+		return memberCount[warehouse];
+	}
+
+	public int getEntity(int warehouse, int slot) {
+		return members[warehouse][slot];
+	}
+
+	public boolean isEmpty(int warehouse) {
+		for (int i=0; i<memberCount[warehouse]; i++) {
+			if (!removed[members[warehouse][i]]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//===============
+	// Accounts
+	//===============
+	/*
+	 * The account's symbol in getSymbols()
+	 */
+	public int getAccountId(int entity) {
+		return entityAccount[entity];
+	}
+
+	public int getWarehouseId(int entity) {
+		return entityWarehouse[entity];
+	}
+
+	public String getAccountName(int entity) {
+		return symbols.getName(entityAccount[entity]);
+	}
+
+	public boolean isRemoved(int entity) {
+		return removed[entity];
+	}
+
+	/*
+	 * Mask the account out of its warehouse, for an account with no global counterpart.
+	 * Unlike remove() this leaves the store alone: the account keeps its slot and later
+	 * conversions still visit it, but the outputs skip it (see isLive()).
+	 */
+	public void markMissing(int entity) {
+
+		int warehouse = entityWarehouse[entity];
+		if (missing[warehouse] == null)
+			missing[warehouse] = new BitSet();
+		missing[warehouse].set(entityAccount[entity]);
+	}
+
+	public boolean isMissing(int entity) {
+		BitSet masked = missing[entityWarehouse[entity]];
+		return masked != null && masked.get(entityAccount[entity]);
+	}
+
+	/*
+	 * Neither removed nor masked as missing: an account the outputs should show
+	 */
+	public boolean isLive(int entity) {
+		return !removed[entity] && !isMissing(entity);
+	}
+
+	public int indexOf(int warehouse, String account) {
+		return indexOf(warehouse, symbols.idOf(account));
+	}
+
+	public int indexOf(int warehouse, int accountId) {
+		if (warehouse < 0 || accountId < 0) {
+			return -1;
+		}
+		return entityIndex.get(key(warehouse, accountId));
+	}
+
+	/*
+	 * Set the account's months within the warehouse, adding it if needed
+	 */
+	public int put(int warehouse, String account, double[] volumes, double[] margins) {
+		return put(warehouse, symbols.intern(account), volumes, margins);
+	}
+
+	public int put(int warehouse, int accountId, double[] volumes, double[] margins) {
+
+		int entity = indexOf(warehouse, accountId);
+
+		if (entity < 0) {
+
+			entity = newEntity(volumes, margins);
+			entityWarehouse[entity] = warehouse;
+			entityAccount[entity] = accountId;
+			entityIndex.put(key(warehouse, accountId), entity);
+
+			if (memberCount[warehouse] == members[warehouse].length) {
+				int[] newSlots = new int[members[warehouse].length * 2];
+				System.arraycopy(members[warehouse], 0, newSlots, 0, memberCount[warehouse]);
+				members[warehouse] = newSlots;
+			}
+			members[warehouse][memberCount[warehouse]++] = entity;
+		}
+
+		set(entity, volumes, margins);
+		return entity;
+	}
+
+	public boolean remove(String warehouseName, String account) {
+
+		int warehouse = warehouseIdOf(warehouseName);
+		int entity = indexOf(warehouse, account);
+		if (entity < 0) {
+			return false;
+		}
+
+		removed[entity] = true;
+		entityIndex.remove(key(warehouse, entityAccount[entity]));
+		return true;
+	}
+
+	/*
+	 * Rebuild a store from a snapshot. The block holds the warehouses' accounts back to back:
+	 * the first accountCounts[0] entities belong to warehouses[0], and so on, with
+	 * accounts[i] naming entity i.
+	 */
+	public static WarehouseStore restore(int volumeMonths, int marginMonths, String[] warehouses, int[] accountCounts, String[] accounts, double[] data) {
+		return restore(volumeMonths, marginMonths, warehouses, accountCounts, accounts, data, new SymbolTable());
+	}
+
+	public static WarehouseStore restore(int volumeMonths, int marginMonths, String[] warehouses, int[] accountCounts, String[] accounts, double[] data, SymbolTable symbols) {
+
+		int[] accountIds = new int[accounts.length];
+		for (int i=0; i<accounts.length; i++) {
+			accountIds[i] = symbols.intern(accounts[i]);
+		}
+		return restore(volumeMonths, marginMonths, warehouses, accountCounts, accountIds, data, symbols);
+	}
+
+	private static WarehouseStore restore(int volumeMonths, int marginMonths, String[] warehouses, int[] accountCounts, int[] accountIds, double[] data, SymbolTable symbols) {
+
+		WarehouseStore store = new WarehouseStore(symbols);
+		store.restore(volumeMonths, marginMonths, accountIds.length, data);
+
+		int entity = 0;
+		for (int w=0; w<warehouses.length; w++) {
+
+			int warehouse = store.startWarehouse(warehouses[w]);
+			int[] slots = new int[Math.max(accountCounts[w], 1)];
+
+			for (int i=0; i<accountCounts[w]; i++, entity++) {
+
+				store.entityWarehouse[entity] = warehouse;
+				store.entityAccount[entity] = accountIds[entity];
+				store.entityIndex.put(key(warehouse, accountIds[entity]), entity);
+				slots[i] = entity;
+			}
+
+			store.members[warehouse] = slots;
+			store.memberCount[warehouse] = accountCounts[w];
+		}
+
+		return store;
+	}
+
+	/*
+	 * Independent copy holding the accounts that are not removed, warehouse by warehouse, in
+	 * slot order, with the same missing accounts masked. It shares this store's account
+	 * symbols.
+	 */
+	public WarehouseStore copy() {
+
+		int stride = getVolumeMonths() + getMarginMonths();
+		String[] warehouses = new String[getWarehouseCount()];
+		int[] accountCounts = new int[warehouses.length];
+		int[] accountIds = new int[size];
+		double[] block = new double[size * stride];
+		int live = 0;
+
+		for (int w=0; w<warehouses.length; w++) {
+
+			warehouses[w] = getWarehouseName(w);
+			for (int slot=0; slot<memberCount[w]; slot++) {
+
+				int entity = members[w][slot];
+				if (removed[entity])
+					continue;
+
+				accountIds[live] = entityAccount[entity];
+				System.arraycopy(data, offset(entity, VOLUME), block, live * stride, stride);
+				live++;
+				accountCounts[w]++;
+			}
+		}
+
+		WarehouseStore copy = restore(getVolumeMonths(), getMarginMonths(), warehouses, accountCounts,
+				Arrays.copyOf(accountIds, live), Arrays.copyOf(block, live * stride), symbols);
+
+		for (int w=0; w<warehouses.length; w++) {
+			if (missing[w] != null)
+				copy.missing[w] = (BitSet) missing[w].clone();
+		}
+		return copy;
+	}
+
+	@Override
+	protected void grow(int capacity) {
+
+		int[] newWarehouse = new int[capacity];
+		int[] newAccount = new int[capacity];
+		System.arraycopy(entityWarehouse, 0, newWarehouse, 0, entityWarehouse.length);
+		System.arraycopy(entityAccount, 0, newAccount, 0, entityAccount.length);
+		entityWarehouse = newWarehouse;
+		entityAccount = newAccount;
+		removed = Arrays.copyOf(removed, capacity);
+	}
+
+	private static long key(int warehouse, int account) {
+		return ((long) warehouse << 32) | (account & 0xFFFFFFFFL);
+	}
+
+	/*
+	 * long -> entity, open addressing over primitive arrays, so a lookup neither boxes the
+	 * key nor follows a HashMap node. Removed keys keep their slot with entity -1, which a
+	 * later put() of the same key simply overwrites.
+	 */
+	private static class EntityIndex {
+
+		private long[] keys = new long[64];
+		private int[] entities = new int[64];
+		private boolean[] used = new boolean[64];
+		private int count = 0;
+
+		int get(long key) {
+			int i = find(key);
+			return used[i] ? entities[i] : -1;
+		}
+
+		void put(long key, int entity) {
+
+			int i = find(key);
+			if (!used[i]) {
+				if ((count + 1) * 2 > keys.length) {
+					rehash();
+					i = find(key);
+				}
+				used[i] = true;
+				keys[i] = key;
+				count++;
+			}
+			entities[i] = entity;
+		}
+
+		void remove(long key) {
+			int i = find(key);
+			if (used[i])
+				entities[i] = -1;
+		}
+
+		private int find(long key) {
+
+			int mask = keys.length - 1;
+			long h = key * 0x9E3779B97F4A7C15L;
+			int i = (int) (h ^ (h >>> 32)) & mask;
+			while (used[i] && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private void rehash() {
+
+			long[] oldKeys = keys;
+			int[] oldEntities = entities;
+			boolean[] oldUsed = used;
+
+			keys = new long[oldKeys.length * 2];
+			entities = new int[keys.length];
+			used = new boolean[keys.length];
+
+			for (int j=0; j<oldKeys.length; j++) {
+				if (oldUsed[j]) {
+					int i = find(oldKeys[j]);
+					used[i] = true;
+					keys[i] = oldKeys[j];
+					entities[i] = oldEntities[j];
+				}
+			}
+		}
+	}
+}
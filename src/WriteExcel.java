@@ -1,18 +1,15 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Locale;
-import java.util.Map;
 
-import jxl.CellView;
 import jxl.Workbook;
 import jxl.WorkbookSettings;
-import jxl.format.UnderlineStyle;
 import jxl.write.Label;
 import jxl.write.Number;
 import jxl.write.WritableCellFormat;
-import jxl.write.WritableFont;
 import jxl.write.WritableSheet;
 import jxl.write.WritableWorkbook;
 import jxl.write.WriteException;
@@ -21,194 +18,413 @@ import jxl.write.biff.RowsExceededException;
 public class WriteExcel implements Constants {
 
 
-	private WritableCellFormat timesBoldUnderline;
-	private WritableCellFormat times;
 	private String inputFile;
 	private String missingFile;
 	private BudgetAnalysis analysis; 
+	private WarehouseStore warehouseMap;
+	private ArrayList<String[]> missingList;
+	private WarehouseFeed feed;
 	
 	public WriteExcel(BudgetAnalysis analysis) {
 		this.analysis = analysis;
 	}
 	
+	/*
+	 * Write the given projected warehouseMap and missing list rather than the analysis' own, 
+	 * still taking the labels from the analysis' history
+	 */
+	public WriteExcel(BudgetAnalysis analysis, WarehouseStore warehouseMap, ArrayList<String[]> missingList) {
+		this.analysis = analysis;
+		this.warehouseMap = warehouseMap;
+		this.missingList = missingList;
+	}
+	
 	public void setOutputFiles(String inputFile, String missingFile) {
 		this.inputFile = inputFile;
 		this.missingFile = missingFile;
 	}
+	
+	/*
+	 * Take the warehouses to write from the feed, as they become ready, instead of writing 
+	 * every warehouse of the map in order
+	 */
+	public void setWarehouseFeed(WarehouseFeed feed) {
+		this.feed = feed;
+	}
+	
+	/*
+	 * The warehouses createContent() writes, in the order they are to appear
+	 */
+	interface WarehouseFeed {
+		
+		// The next warehouse id, or -1 when there are no more
+		int next();
+	}
+
+	/*
+	 * Where createLabels/createContent/createMissingContent put their cells: a jxl sheet, or 
+	 * a StreamingWorkbookWriter when STREAMING_WRITE=true
+	 */
+	interface Cells {
+		void addCaption(int column, int row, String s) throws IOException, WriteException;
+		void addLabel(int column, int row, String s) throws IOException, WriteException;
+		void addNumber(int column, int row, double d) throws IOException, WriteException;
+		
+		// data[offset .. offset+length) as consecutive numbers of one row, from column on
+		void addRow(int column, int row, double[] data, int offset, int length) throws IOException, WriteException;
+	}
 
 	public void write() throws IOException, WriteException {
 		
+		if (analysis.getContext().isEnabled(strSTREAMING_WRITE)) {
+			writeStreaming();
+			return;
+		}
+		
 		File file = new File(inputFile);
 		WorkbookSettings wbSettings = new WorkbookSettings();
 
 		wbSettings.setLocale(new Locale("en", "EN"));
 
-		WritableWorkbook workbook = Workbook.createWorkbook(file, wbSettings);
+		write(Workbook.createWorkbook(file, wbSettings));
+	}
+	
+	/*
+	 * Same workbook as write(), sent to the stream instead of the output file
+	 */
+	public void write(OutputStream out) throws IOException, WriteException {
+		
+		WorkbookSettings wbSettings = new WorkbookSettings();
+		wbSettings.setLocale(new Locale("en", "EN"));
+		
+		write(Workbook.createWorkbook(out, wbSettings));
+	}
+	
+	private void write(WritableWorkbook workbook) throws IOException, WriteException {
+		
+		long start = analysis.getContext().getMetrics().start();
+		
 		workbook.createSheet("Projections", 0);
 		WritableSheet excelSheet = workbook.getSheet(0);
 		
-		createLabels(excelSheet);
+		Cells cells = new SheetCells(excelSheet);
 		
-		createContent(excelSheet);		
+		createLabels(cells);
+		
+		createContent(cells);		
 
 		workbook.write();
 		
 		workbook.close();
+		
+		analysis.getContext().getMetrics().stop("write", start);
+	}
+	
+	/*
+	 * Same workbook as write(), but every row goes to disk as soon as it is produced 
+	 * instead of being held as jxl cells until the end
+	 */
+	public void writeStreaming() throws IOException, WriteException {
+		
+		long start = analysis.getContext().getMetrics().start();
+		
+		StreamingWorkbookWriter writer = new StreamingWorkbookWriter(new File(inputFile), "Projections");
+		try {
+			Cells cells = new StreamingCells(writer);
+			createLabels(cells);
+			createContent(cells);
+		} finally {
+			writer.close();
+		}
+		
+		analysis.getContext().getMetrics().stop("write", start);
 	}
 
 	public void writeMissingData() throws IOException, WriteException {
 
+		if (analysis.getContext().isEnabled(strSTREAMING_WRITE)) {
+			writeMissingDataStreaming();
+			return;
+		}
+		
 		File file = new File(missingFile);
 		WorkbookSettings wbSettings = new WorkbookSettings();
 		wbSettings.setLocale(new Locale("en", "EN"));
 
-		WritableWorkbook workbook = Workbook.createWorkbook(file, wbSettings);
+		writeMissingData(Workbook.createWorkbook(file, wbSettings));
+	}
+	
+	public void writeMissingData(OutputStream out) throws IOException, WriteException {
+		
+		WorkbookSettings wbSettings = new WorkbookSettings();
+		wbSettings.setLocale(new Locale("en", "EN"));
+		
+		writeMissingData(Workbook.createWorkbook(out, wbSettings));
+	}
+	
+	private void writeMissingData(WritableWorkbook workbook) throws IOException, WriteException {
+		
+		long start = analysis.getContext().getMetrics().start();
+		
 		workbook.createSheet("Missing Accounts in Projection", 0);
 		WritableSheet excelSheet = workbook.getSheet(0);
 		
-		createMissingContent(excelSheet);		
+		createMissingContent(new SheetCells(excelSheet));		
 		workbook.write();		
 		workbook.close();
+		
+		analysis.getContext().getMetrics().stop("writeMissingData", start);
+	}
+	
+	public void writeMissingDataStreaming() throws IOException, WriteException {
+		
+		long start = analysis.getContext().getMetrics().start();
+		
+		StreamingWorkbookWriter writer = new StreamingWorkbookWriter(new File(missingFile), "Missing Accounts in Projection");
+		try {
+			createMissingContent(new StreamingCells(writer));
+		} finally {
+			writer.close();
+		}
+		
+		analysis.getContext().getMetrics().stop("writeMissingData", start);
 	}
 	
 	public void createMissingContent(WritableSheet sheet) throws WriteException {
 		
-		WritableFont times12pt = new WritableFont(WritableFont.TIMES, 12);
-		times = new WritableCellFormat(times12pt);
-		times.setWrap(false);
-
-		// Create create a bold font with unterlines
-		WritableFont times12ptBoldUnderline = new WritableFont(
-				WritableFont.TIMES, 12, WritableFont.BOLD, false,
-				UnderlineStyle.SINGLE);
-		timesBoldUnderline = new WritableCellFormat(times12ptBoldUnderline);
-		timesBoldUnderline.setWrap(false);
-
-		CellView cv = new CellView();
-		cv.setFormat(times);
-		cv.setFormat(timesBoldUnderline);
-		cv.setAutosize(true);
-
-		// Write a few headers
-		addCaption(sheet, 0, 1, "Warehouse");
-		addCaption(sheet, 1, 1, "Acct#Name");
+		try {
+			createMissingContent(new SheetCells(sheet));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void createMissingContent(Cells sheet) throws IOException, WriteException {
+		
+		MissingWriter missing = new MissingWriter(sheet);
 
-		ArrayList<String[]> missingList = analysis.getMissingAccountList();
+		ArrayList<String[]> missingList = (this.missingList != null) ? this.missingList : analysis.getMissingAccountList();
 		Iterator<String[]> it = missingList.iterator();
 	    
-		int indexY = 2;
 		while (it.hasNext()) {
 	    	String[] account = (String[])it.next();	    	
-	    	String _warehouseName = account[0];
-	    	String _accountName = account[1];
+	    	missing.add(account[0], account[1]);
+	    }		
+	}
+	
+	/*
+	 * The missing accounts sheet one account at a time, below its headers
+	 */
+	static class MissingWriter {
+		
+		private Cells sheet;
+		private int indexY = 2;
+		
+		MissingWriter(Cells sheet) throws IOException, WriteException {
 			
-	    	addCaption(sheet, 0, indexY, _warehouseName);	    	
-	      	addCaption(sheet, 1, indexY, _accountName);	    	
+			this.sheet = sheet;
+			
+			// Write a few headers
+			sheet.addCaption(0, 1, "Warehouse");
+			sheet.addCaption(1, 1, "Acct#Name");
+		}
+		
+		void add(String warehouseName, String accountName) throws IOException, WriteException {
+			
+	    	sheet.addCaption(0, indexY, warehouseName);	    	
+	      	sheet.addCaption(1, indexY, accountName);	    	
 	  	    	
 	      	indexY++;
-	    }		
+		}
 	}
 	
 	public void createLabels(WritableSheet sheet) throws WriteException {
 		
-		// Lets create a times font
-		WritableFont times12pt = new WritableFont(WritableFont.TIMES, 12);
-		// Define the cell format
-		times = new WritableCellFormat(times12pt);
+		try {
+			createLabels(new SheetCells(sheet));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	void createLabels(Cells sheet) throws IOException, WriteException {
 		
-		// Lets automatically wrap the cells
-		times.setWrap(false);
-
-		// Create create a bold font with underlines
-		WritableFont times10ptBoldUnderline = new WritableFont(
-				WritableFont.TIMES, 12, WritableFont.BOLD, false,
-				UnderlineStyle.SINGLE);
-		timesBoldUnderline = new WritableCellFormat(times10ptBoldUnderline);
+		String[] volumes = analysis.getLabels(analysis.getHistSheet(), strVOLUME_LABEL_RANGE);
+		String[] margins = analysis.getLabels(analysis.getHistSheet(), strGROSS_MARGIN_LABEL_RANGE);
 		
-		// Lets automatically wrap the cells
-		timesBoldUnderline.setWrap(false);
-
-		CellView cv = new CellView();
-		cv.setFormat(times);
-		cv.setFormat(timesBoldUnderline);
-		cv.setAutosize(true);
-
-		// Write a few headers
-		addCaption(sheet, 0, 1, "Warehouse");
-		addCaption(sheet, 1, 1, "Acct#Name");
+		// Row by row, so the streaming writer can take them as they come. With no volume 
+		// months both captions would share a cell; jxl keeps the second, so only that one 
+		// is written, as the streaming writer takes each cell once.
+		if (volumes.length > 0) 
+			sheet.addCaption(2, 0, "Volumes");
+		sheet.addCaption(2+volumes.length, 0, "Gross Margins");
 		
-		addCaption(sheet, 2, 0, "Volumes");
+		// Write a few headers
+		sheet.addCaption(0, 1, "Warehouse");
+		sheet.addCaption(1, 1, "Acct#Name");
 		
 		// Add the rest 
-		String[] volumes = analysis.getLabels(analysis.getHistSheet(), strVOLUME_LABEL_RANGE);
 		for (int i=0; i<volumes.length; i++) 
-			addCaption(sheet, i+2, 1, volumes[i]);
+			sheet.addCaption(i+2, 1, volumes[i]);
 
-		addCaption(sheet, 2+volumes.length, 0, "Gross Margins");
-		
-		String[] margins = analysis.getLabels(analysis.getHistSheet(), strGROSS_MARGIN_LABEL_RANGE);
 		for (int j=0; j<margins.length; j++) 
-			addCaption(sheet, j+2+volumes.length, 1, margins[j]);
+			sheet.addCaption(j+2+volumes.length, 1, margins[j]);
 
 	}
 
 	public void createContent(WritableSheet sheet) throws WriteException, RowsExceededException {
 		
-		Map<String, Map<String, ArrayList<double[]>>> warehouseMap = analysis.getWarehouseMap();
+		try {
+			createContent(new SheetCells(sheet));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void createContent(Cells sheet) throws IOException, WriteException {
+		
+		WarehouseStore warehouseMap = (this.warehouseMap != null) ? this.warehouseMap : analysis.getWarehouseMap();
+		WarehouseFeed warehouses = (feed != null) ? feed : allWarehouses(warehouseMap);
+		ContentWriter content = new ContentWriter(sheet);
+		
+		for (int warehouse=warehouses.next(); warehouse>=0; warehouse=warehouses.next()) {			
+			content.add(warehouseMap, warehouse);
+		}
+		
+		content.finish();
+	}
+	
+	/*
+	 * The projections below the labels, one warehouse at a time, from whichever store 
+	 * holds it
+	 */
+	static class ContentWriter {
+		
+		private Cells sheet;
+		
+		// A warehouse left without accounts gives its row to the next one, so its name is only 
+		// written with its first account (or at the very end)
+		private String pendingWarehouse = null;
+		private int y_index = 2;
 		
-		int y_index = 2;
-		for (Map.Entry<String, Map<String, ArrayList<double[]>>> masterEntry : warehouseMap.entrySet()) {			
+		ContentWriter(Cells sheet) {
+			this.sheet = sheet;
+		}
+		
+		void add(WarehouseStore warehouseMap, int warehouse) throws IOException, WriteException {
 			
-			String warehouseName = masterEntry.getKey();
+			double[] data = warehouseMap.getData();
+			int volumeMonths = warehouseMap.getVolumeMonths();
+			int marginMonths = warehouseMap.getMarginMonths();
 			
-			addLabel(sheet, 0, y_index, warehouseName);
+			pendingWarehouse = warehouseMap.getWarehouseName(warehouse);
 			
-			Map<String, ArrayList<double[]>> accountMap = masterEntry.getValue();
-
-			for (Map.Entry<String, ArrayList<double[]>> accountEntry : accountMap.entrySet()) {
+			for (int slot=0; slot<warehouseMap.getSlotCount(warehouse); slot++) {
 				
-				String accountName = accountEntry.getKey();				
-				addLabel(sheet, 1, y_index, accountName);
+				int entity = warehouseMap.getEntity(warehouse, slot);
+				if (!warehouseMap.isLive(entity)) 
+					continue;
 				
-				ArrayList<double[]> list = accountEntry.getValue();
-								
-				// print volumes
-				double[] volumes = list.get(0);
-				for (int i=0; i<volumes.length; i++) {
-					addNumber(sheet, i+2, y_index, volumes[i]);				
+				if (pendingWarehouse != null) {
+					sheet.addLabel(0, y_index, pendingWarehouse);
+					pendingWarehouse = null;
 				}
 				
-				// print gross margins
-				double[] margins = list.get(1);
-				for (int i=0; i<margins.length; i++) {
-					addNumber(sheet, i+2+volumes.length, y_index, margins[i]);				
-				}
+				String accountName = warehouseMap.getAccountName(entity);				
+				sheet.addLabel(1, y_index, accountName);
+								
+				// print volumes, then gross margins, which follow them in the block
+				sheet.addRow(2, y_index, data, warehouseMap.offset(entity, ColumnarStore.VOLUME), volumeMonths + marginMonths);
 
 				y_index++;
 			}	
+		}
+		
+		void finish() throws IOException, WriteException {
 			
+			if (pendingWarehouse != null) 
+				sheet.addLabel(0, y_index, pendingWarehouse);
 		}
+	}
+	
+	private static WarehouseFeed allWarehouses(final WarehouseStore warehouseMap) {
 		
+		return new WarehouseFeed() {
+			
+			private int warehouse = 0;
+			
+			public int next() {
+				return warehouse < warehouseMap.getWarehouseCount() ? warehouse++ : -1;
+			}
+		};
 	}
 
-	private void addCaption(WritableSheet sheet, int column, int row, String s)
-			throws RowsExceededException, WriteException {
-		Label label;
-		label = new Label(column, row, s, timesBoldUnderline);
-		sheet.addCell(label);
-	}
+	/*
+	 * jxl keeps every cell object until the workbook is written, so these cannot be reused; 
+	 * the formats are built once per sheet and shared by all of its cells
+	 */
+	static class SheetCells implements Cells {
+		
+		private WritableSheet sheet;
+		private WritableCellFormat times;
+		private WritableCellFormat timesBoldUnderline;
+		
+		SheetCells(WritableSheet sheet) throws WriteException {
+			
+			WritableCellFormat[] formats = CellFormats.newJxlFormats();
+			
+			this.sheet = sheet;
+			this.times = formats[CellFormats.PLAIN];
+			this.timesBoldUnderline = formats[CellFormats.CAPTION];
+		}
+		
+		public void addCaption(int column, int row, String s) throws RowsExceededException, WriteException {
+			Label label;
+			label = new Label(column, row, s, timesBoldUnderline);
+			sheet.addCell(label);
+		}
 
-	private void addNumber(WritableSheet sheet, int column, int row,
-			double d) throws WriteException, RowsExceededException {
-		Number number;
-		number = new Number(column, row, d, times);
-		sheet.addCell(number);
+		public void addNumber(int column, int row, double d) throws WriteException, RowsExceededException {
+			Number number;
+			number = new Number(column, row, d, times);
+			sheet.addCell(number);
+		}
+
+		public void addLabel(int column, int row, String s) throws WriteException, RowsExceededException {
+			Label label;
+			label = new Label(column, row, s, times);
+			sheet.addCell(label);
+		}
+		
+		public void addRow(int column, int row, double[] data, int offset, int length) throws WriteException, RowsExceededException {
+			for (int i=0; i<length; i++) {
+				sheet.addCell(new Number(column+i, row, data[offset+i], times));
+			}
+		}
 	}
+	
+	static class StreamingCells implements Cells {
+		
+		private StreamingWorkbookWriter writer;
+		
+		StreamingCells(StreamingWorkbookWriter writer) {
+			this.writer = writer;
+		}
+		
+		public void addCaption(int column, int row, String s) throws IOException {
+			writer.addLabel(column, row, s, StreamingWorkbookWriter.CAPTION);
+		}
+
+		public void addNumber(int column, int row, double d) throws IOException {
+			writer.addNumber(column, row, d, StreamingWorkbookWriter.PLAIN);
+		}
 
-	private void addLabel(WritableSheet sheet, int column, int row, String s)
-			throws WriteException, RowsExceededException {
-		Label label;
-		label = new Label(column, row, s, times);
-		sheet.addCell(label);
+		public void addLabel(int column, int row, String s) throws IOException {
+			writer.addLabel(column, row, s, StreamingWorkbookWriter.PLAIN);
+		}
+		
+		public void addRow(int column, int row, double[] data, int offset, int length) throws IOException {
+			writer.addNumbers(column, row, data, offset, length, StreamingWorkbookWriter.PLAIN);
+		}
 	}
-}
\ No newline at end of file
+}